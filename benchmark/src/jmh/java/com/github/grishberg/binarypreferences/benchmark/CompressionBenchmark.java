@@ -0,0 +1,106 @@
+package com.github.grishberg.binarypreferences.benchmark;
+
+import com.github.grishberg.binarypreferences.BinaryPreferences;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.TearDown;
+
+import java.io.File;
+import java.io.IOException;
+import java.util.Map;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Load and full rewrite of store with JSON-like string values, with and without
+ * compression of values above threshold.
+ */
+@State(Scope.Thread)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MICROSECONDS)
+public class CompressionBenchmark {
+    @Param({"100", "1000"})
+    int keys;
+
+    /**
+     * Number of JSON objects in each value.
+     */
+    @Param({"4", "64"})
+    int objects;
+
+    @Param({"0", "256"})
+    int compressionThreshold;
+
+    private File file;
+    private BinaryPreferences preferences;
+    private int position;
+
+    @Setup
+    public void setUp() throws IOException {
+        file = File.createTempFile("benchmark", ".prefs");
+        if (!file.delete()) {
+            throw new IOException("Can't delete " + file);
+        }
+        file.deleteOnExit();
+        preferences = new BinaryPreferences(file, options());
+        BinaryPreferences.BinaryEditor editor = preferences.edit();
+        for (int i = 0; i < keys; i++) {
+            editor.putString(PreferencesFixture.name(i), json(i));
+        }
+        editor.commit();
+        // loaded instance writes changed key only, other values are in mapped file.
+        preferences = new BinaryPreferences(file, options());
+    }
+
+    @TearDown
+    public void tearDown() {
+        file.delete();
+    }
+
+    private BinaryPreferences.Options options() {
+        return new BinaryPreferences.Options()
+                .setApplyExecutor(Runnable::run)
+                .setCompressionThreshold(compressionThreshold);
+    }
+
+    private String json(int index) {
+        StringBuilder builder = new StringBuilder("[");
+        for (int i = 0; i < objects; i++) {
+            builder.append("{\"id\":").append(index * objects + i)
+                    .append(",\"title\":\"item ").append(i)
+                    .append("\",\"enabled\":").append((i & 1) == 0)
+                    .append(",\"tags\":[\"preferences\",\"binary\"]},");
+        }
+        return builder.append("]").toString();
+    }
+
+    @Benchmark
+    public String openAndGetString() {
+        return new BinaryPreferences(file, options()).getString(PreferencesFixture.name(0), null);
+    }
+
+    /**
+     * Reads and inflates every value.
+     */
+    @Benchmark
+    public Map<String, ?> openAndGetAll() {
+        return new BinaryPreferences(file, options()).getAll();
+    }
+
+    /**
+     * Rewrites whole file with one changed value.
+     */
+    @Benchmark
+    public boolean commitString() {
+        position++;
+        return preferences.edit()
+                .putString(PreferencesFixture.name(position % keys), json(position))
+                .commit();
+    }
+}
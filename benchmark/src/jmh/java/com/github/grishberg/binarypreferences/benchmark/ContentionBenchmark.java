@@ -0,0 +1,119 @@
+package com.github.grishberg.binarypreferences.benchmark;
+
+import android.content.SharedPreferences;
+
+import com.github.grishberg.binarypreferences.BinaryPreferences;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Group;
+import org.openjdk.jmh.annotations.GroupThreads;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.TearDown;
+
+import java.io.File;
+import java.io.IOException;
+import java.util.HashMap;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Reads of several threads while one thread keeps applying changes, changes are kept
+ * only in memory so locking is measured instead of file writes. {@code monitorReadWrite}
+ * group is the baseline where every read and write holds the same monitor.
+ */
+@State(Scope.Group)
+@BenchmarkMode(Mode.Throughput)
+@OutputTimeUnit(TimeUnit.MICROSECONDS)
+public class ContentionBenchmark {
+    @Param({"1000"})
+    int keys;
+
+    private File file;
+    private BinaryPreferences preferences;
+    private String[] names;
+    private MonitorValues monitorValues;
+
+    @Setup
+    public void setUp() throws IOException {
+        file = PreferencesFixture.create(keys, ValueSize.SMALL, false);
+        preferences = new BinaryPreferences(file, new BinaryPreferences.Options()
+                .setApplyExecutor(command -> {
+                }));
+        names = PreferencesFixture.names(keys, PreferencesFixture.TYPE_INT);
+        monitorValues = new MonitorValues();
+        for (int i = 0; i < names.length; i++) {
+            monitorValues.putInt(names[i], i);
+        }
+    }
+
+    @TearDown
+    public void tearDown() {
+        file.delete();
+    }
+
+    @State(Scope.Thread)
+    public static class Position {
+        int value;
+
+        int next(int count) {
+            value++;
+            return (value & Integer.MAX_VALUE) % count;
+        }
+    }
+
+    @Benchmark
+    @Group("readWrite")
+    @GroupThreads(3)
+    public int read(Position position) {
+        return preferences.getInt(names[position.next(names.length)], 0);
+    }
+
+    @Benchmark
+    @Group("readWrite")
+    @GroupThreads(1)
+    public void write(Position position) {
+        SharedPreferences.Editor editor = preferences.edit();
+        editor.putInt(names[position.next(names.length)], position.value);
+        editor.apply();
+    }
+
+    @Benchmark
+    @Group("monitorReadWrite")
+    @GroupThreads(3)
+    public int monitorRead(Position position) {
+        return monitorValues.getInt(names[position.next(names.length)], 0);
+    }
+
+    @Benchmark
+    @Group("monitorReadWrite")
+    @GroupThreads(1)
+    public void monitorWrite(Position position) {
+        monitorValues.putInt(names[position.next(names.length)], position.value);
+    }
+
+    /**
+     * Previous design: every read and write holds the same monitor.
+     */
+    private static class MonitorValues {
+        private final Object lock = new Object();
+        private final HashMap<String, Integer> values = new HashMap<>();
+
+        int getInt(String key, int defValue) {
+            synchronized (lock) {
+                Integer result = values.get(key);
+                return result != null ? result : defValue;
+            }
+        }
+
+        void putInt(String key, int value) {
+            synchronized (lock) {
+                values.put(key, value);
+            }
+        }
+    }
+}
@@ -0,0 +1,137 @@
+package com.github.grishberg.binarypreferences.benchmark;
+
+import android.content.SharedPreferences;
+
+import com.github.grishberg.binarypreferences.BinaryPreferences;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Level;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.TearDown;
+
+import java.io.File;
+import java.io.IOException;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Editor puts, {@code commit()} and {@code apply()} of single changed key into store of
+ * given size.
+ */
+@State(Scope.Thread)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MICROSECONDS)
+public class EditBenchmark {
+    /**
+     * Pending writes after {@code apply()}, caller waits when queue is full so measured
+     * time includes writer backpressure instead of growing backlog.
+     */
+    private static final int APPLY_QUEUE_SIZE = 16;
+
+    @Param({"10", "1000", "10000", "100000"})
+    int keys;
+
+    @Param({"SMALL", "LARGE"})
+    ValueSize valueSize;
+
+    @Param({"false", "true"})
+    boolean deltaLog;
+
+    private File file;
+    private ThreadPoolExecutor applyExecutor;
+    private BinaryPreferences preferences;
+    private String[] intNames;
+    private String[] stringNames;
+    private String[] strings;
+    private int position;
+
+    @Setup
+    public void setUp() throws IOException {
+        file = PreferencesFixture.create(keys, valueSize, deltaLog);
+        applyExecutor = new ThreadPoolExecutor(1, 1, 0, TimeUnit.MILLISECONDS,
+                new ArrayBlockingQueue<>(APPLY_QUEUE_SIZE), (command, executor) -> {
+            try {
+                executor.getQueue().put(command);
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+            }
+        });
+        preferences = new BinaryPreferences(file,
+                PreferencesFixture.options(deltaLog).setApplyExecutor(applyExecutor));
+        intNames = PreferencesFixture.names(keys, PreferencesFixture.TYPE_INT);
+        stringNames = PreferencesFixture.names(keys, PreferencesFixture.TYPE_STRING);
+        strings = new String[]{
+                PreferencesFixture.string(1, valueSize),
+                PreferencesFixture.string(2, valueSize)
+        };
+    }
+
+    /**
+     * Waits for pending writes so they don't leak into next iteration.
+     */
+    @TearDown(Level.Iteration)
+    public void drainApplyQueue() throws ExecutionException, InterruptedException {
+        applyExecutor.submit(() -> {
+        }).get();
+    }
+
+    @TearDown
+    public void tearDown() {
+        applyExecutor.shutdown();
+        file.delete();
+    }
+
+    private int next(int count) {
+        position++;
+        return (position & Integer.MAX_VALUE) % count;
+    }
+
+    /**
+     * Puts one value of each type without committing.
+     */
+    @Benchmark
+    public SharedPreferences.Editor put() {
+        int index = next(PreferencesFixture.TYPES * 16);
+        SharedPreferences.Editor editor = preferences.edit();
+        for (int i = 0; i < PreferencesFixture.TYPES; i++) {
+            PreferencesFixture.put(editor, index + i, ValueSize.SMALL);
+        }
+        return editor;
+    }
+
+    @Benchmark
+    public boolean commitInt() {
+        return preferences.edit()
+                .putInt(intNames[next(intNames.length)], position)
+                .commit();
+    }
+
+    @Benchmark
+    public boolean commitString() {
+        return preferences.edit()
+                .putString(stringNames[next(stringNames.length)], strings[position & 1])
+                .commit();
+    }
+
+    @Benchmark
+    public void applyInt() {
+        preferences.edit()
+                .putInt(intNames[next(intNames.length)], position)
+                .apply();
+    }
+
+    @Benchmark
+    public void applyString() {
+        preferences.edit()
+                .putString(stringNames[next(stringNames.length)], strings[position & 1])
+                .apply();
+    }
+}
@@ -0,0 +1,115 @@
+package com.github.grishberg.binarypreferences.benchmark;
+
+import com.github.grishberg.binarypreferences.BinaryPreferences;
+import com.github.grishberg.binarypreferences.PreferenceKey;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.TearDown;
+
+import java.io.File;
+import java.io.IOException;
+import java.util.Set;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Reads of existing keys from loaded instance, each call reads next key of given type.
+ */
+@State(Scope.Thread)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.NANOSECONDS)
+public class GetBenchmark {
+    @Param({"10", "1000", "10000", "100000"})
+    int keys;
+
+    @Param({"SMALL", "LARGE"})
+    ValueSize valueSize;
+
+    private File file;
+    private BinaryPreferences preferences;
+    private String[][] names;
+    private PreferenceKey<Integer>[] intKeys;
+    private int position;
+
+    @Setup
+    @SuppressWarnings("unchecked")
+    public void setUp() throws IOException {
+        file = PreferencesFixture.create(keys, valueSize, false);
+        preferences = new BinaryPreferences(file);
+        names = new String[PreferencesFixture.TYPES][];
+        for (int type = 0; type < PreferencesFixture.TYPES; type++) {
+            names[type] = PreferencesFixture.names(keys, type);
+        }
+        String[] intNames = names[PreferencesFixture.TYPE_INT];
+        intKeys = (PreferenceKey<Integer>[]) new PreferenceKey<?>[intNames.length];
+        for (int i = 0; i < intNames.length; i++) {
+            intKeys[i] = PreferenceKey.ofInt(intNames[i], 0);
+        }
+        // values are decoded on first access, warm them up before measurement.
+        preferences.getAll();
+        for (String name : names[PreferencesFixture.TYPE_STRING]) {
+            preferences.getString(name, null);
+        }
+        for (String name : names[PreferencesFixture.TYPE_STRING_SET]) {
+            preferences.getStringSet(name, null);
+        }
+    }
+
+    @TearDown
+    public void tearDown() {
+        file.delete();
+    }
+
+    private String next(int type) {
+        String[] names = this.names[type];
+        position++;
+        return names[(position & Integer.MAX_VALUE) % names.length];
+    }
+
+    @Benchmark
+    public int getInt() {
+        return preferences.getInt(next(PreferencesFixture.TYPE_INT), 0);
+    }
+
+    @Benchmark
+    public int getIntHandle() {
+        position++;
+        return preferences.getInt(intKeys[(position & Integer.MAX_VALUE) % intKeys.length]);
+    }
+
+    @Benchmark
+    public long getLong() {
+        return preferences.getLong(next(PreferencesFixture.TYPE_LONG), 0);
+    }
+
+    @Benchmark
+    public float getFloat() {
+        return preferences.getFloat(next(PreferencesFixture.TYPE_FLOAT), 0);
+    }
+
+    @Benchmark
+    public boolean getBoolean() {
+        return preferences.getBoolean(next(PreferencesFixture.TYPE_BOOLEAN), false);
+    }
+
+    @Benchmark
+    public String getString() {
+        return preferences.getString(next(PreferencesFixture.TYPE_STRING), null);
+    }
+
+    @Benchmark
+    public Set<String> getStringSet() {
+        return preferences.getStringSet(next(PreferencesFixture.TYPE_STRING_SET), null);
+    }
+
+    @Benchmark
+    public boolean containsMissing() {
+        return preferences.contains("missing_key");
+    }
+}
@@ -0,0 +1,69 @@
+package com.github.grishberg.binarypreferences.benchmark;
+
+import com.github.grishberg.binarypreferences.BinaryPreferences;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.TearDown;
+
+import java.io.File;
+import java.io.IOException;
+import java.util.Map;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Opening of existing file by new instance, file content stays in page cache between runs.
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MICROSECONDS)
+public class LoadBenchmark {
+    @Param({"10", "1000", "10000", "100000"})
+    int keys;
+
+    @Param({"SMALL", "LARGE"})
+    ValueSize valueSize;
+
+    private File file;
+    private String booleanName;
+    private String stringName;
+
+    @Setup
+    public void setUp() throws IOException {
+        file = PreferencesFixture.create(keys, valueSize, false);
+        booleanName = PreferencesFixture.names(keys, PreferencesFixture.TYPE_BOOLEAN)[0];
+        stringName = PreferencesFixture.names(keys, PreferencesFixture.TYPE_STRING)[0];
+    }
+
+    @TearDown
+    public void tearDown() {
+        file.delete();
+    }
+
+    /**
+     * Startup path that needs single flag.
+     */
+    @Benchmark
+    public boolean openAndGetBoolean() {
+        return new BinaryPreferences(file).getBoolean(booleanName, false);
+    }
+
+    @Benchmark
+    public String openAndGetString() {
+        return new BinaryPreferences(file).getString(stringName, null);
+    }
+
+    /**
+     * Reads and decodes every value.
+     */
+    @Benchmark
+    public Map<String, ?> openAndGetAll() {
+        return new BinaryPreferences(file).getAll();
+    }
+}
@@ -0,0 +1,105 @@
+package com.github.grishberg.binarypreferences.benchmark;
+
+import android.content.SharedPreferences;
+
+import com.github.grishberg.binarypreferences.BinaryPreferences;
+
+import java.io.File;
+import java.io.IOException;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.HashSet;
+import java.util.Set;
+
+/**
+ * Preferences file with keys of all value types, key {@code i} has type {@code i % TYPES}:
+ * int, long, float, boolean, string, string set.
+ */
+final class PreferencesFixture {
+    static final int TYPE_INT = 0;
+    static final int TYPE_LONG = 1;
+    static final int TYPE_FLOAT = 2;
+    static final int TYPE_BOOLEAN = 3;
+    static final int TYPE_STRING = 4;
+    static final int TYPE_STRING_SET = 5;
+    static final int TYPES = 6;
+
+    private PreferencesFixture() {
+    }
+
+    static String name(int index) {
+        return "preference_key_" + index;
+    }
+
+    /**
+     * Returns names of keys with given type among {@code keys} keys, at least one.
+     */
+    static String[] names(int keys, int type) {
+        String[] names = new String[Math.max(1, (keys - type + TYPES - 1) / TYPES)];
+        for (int i = 0; i < names.length; i++) {
+            names[i] = name(i * TYPES + type);
+        }
+        return names;
+    }
+
+    static String string(int index, ValueSize size) {
+        char[] chars = new char[size.stringLength];
+        Arrays.fill(chars, (char) ('a' + index % 26));
+        return new String(chars);
+    }
+
+    static Set<String> stringSet(int index, ValueSize size) {
+        HashSet<String> set = new HashSet<>();
+        for (int i = 0; i < size.setSize; i++) {
+            set.add(i + "_" + string(index, ValueSize.SMALL));
+        }
+        return Collections.unmodifiableSet(set);
+    }
+
+    static void put(SharedPreferences.Editor editor, int index, ValueSize size) {
+        String name = name(index);
+        switch (index % TYPES) {
+            case TYPE_INT:
+                editor.putInt(name, index);
+                break;
+            case TYPE_LONG:
+                editor.putLong(name, (long) index << 32);
+                break;
+            case TYPE_FLOAT:
+                editor.putFloat(name, index / 2f);
+                break;
+            case TYPE_BOOLEAN:
+                editor.putBoolean(name, (index & 1) == 0);
+                break;
+            case TYPE_STRING:
+                editor.putString(name, string(index, size));
+                break;
+            default:
+                editor.putStringSet(name, stringSet(index, size));
+                break;
+        }
+    }
+
+    /**
+     * Creates temporary preferences file with {@code keys} keys.
+     */
+    static File create(int keys, ValueSize size, boolean deltaLog) throws IOException {
+        File file = File.createTempFile("benchmark", ".prefs");
+        if (!file.delete()) {
+            throw new IOException("Can't delete " + file);
+        }
+        file.deleteOnExit();
+        SharedPreferences preferences = new BinaryPreferences(file, options(deltaLog)
+                .setApplyExecutor(Runnable::run));
+        SharedPreferences.Editor editor = preferences.edit();
+        for (int i = 0; i < keys; i++) {
+            put(editor, i, size);
+        }
+        editor.commit();
+        return file;
+    }
+
+    static BinaryPreferences.Options options(boolean deltaLog) {
+        return new BinaryPreferences.Options().setDeltaLogEnabled(deltaLog);
+    }
+}
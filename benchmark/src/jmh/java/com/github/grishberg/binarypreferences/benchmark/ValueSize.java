@@ -0,0 +1,17 @@
+package com.github.grishberg.binarypreferences.benchmark;
+
+/**
+ * Size of string values and of string set members.
+ */
+public enum ValueSize {
+    SMALL(8, 2),
+    LARGE(512, 16);
+
+    final int stringLength;
+    final int setSize;
+
+    ValueSize(int stringLength, int setSize) {
+        this.stringLength = stringLength;
+        this.setSize = setSize;
+    }
+}
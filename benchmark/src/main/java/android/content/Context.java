@@ -0,0 +1,14 @@
+package android.content;
+
+import android.content.pm.ApplicationInfo;
+
+/**
+ * JVM stand-in for Android context, only application data dir is provided.
+ */
+public class Context {
+    private final ApplicationInfo applicationInfo = new ApplicationInfo();
+
+    public ApplicationInfo getApplicationInfo() {
+        return applicationInfo;
+    }
+}
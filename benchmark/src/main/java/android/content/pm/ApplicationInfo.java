@@ -0,0 +1,8 @@
+package android.content.pm;
+
+/**
+ * JVM stand-in for Android application info.
+ */
+public class ApplicationInfo {
+    public String dataDir = System.getProperty("java.io.tmpdir");
+}
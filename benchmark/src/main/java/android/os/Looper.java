@@ -0,0 +1,31 @@
+package android.os;
+
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+
+/**
+ * JVM stand-in for Android looper: main looper is a single daemon thread.
+ */
+public final class Looper {
+    private static final Looper MAIN = new Looper();
+
+    private volatile Thread thread;
+    final ScheduledExecutorService executor =
+            Executors.newSingleThreadScheduledExecutor(runnable -> {
+                Thread thread = new Thread(runnable, "main");
+                thread.setDaemon(true);
+                this.thread = thread;
+                return thread;
+            });
+
+    private Looper() {
+    }
+
+    public static Looper getMainLooper() {
+        return MAIN;
+    }
+
+    public static Looper myLooper() {
+        return Thread.currentThread() == MAIN.thread ? MAIN : null;
+    }
+}
@@ -0,0 +1,190 @@
+package com.github.grishberg.binarypreferences;
+
+import java.util.HashSet;
+import java.util.Set;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.ScheduledThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
+
+import androidx.annotation.Nullable;
+
+/**
+ * Coalesces writes after {@code apply()}: there is at most one pending flush per store,
+ * keys changed by all applies since previous flush are written once with their latest values.
+ * Flush is delayed by debounce window since last apply, but no more than max delay since
+ * first apply that is not written yet.
+ */
+final class ApplyScheduler {
+    /**
+     * Shared by all stores, only moves delayed flushes to their apply executors.
+     */
+    @Nullable
+    private static ScheduledExecutorService timer;
+
+    private final Object lock = new Object();
+    private final ExecutorProvider executor;
+    private final ChangesWriter writer;
+    @Nullable
+    private final PreferencesMetrics metrics;
+    private final long debounceNanos;
+    private final long maxDelayNanos;
+
+    private HashSet<String> pendingKeys = new HashSet<>();
+    /**
+     * Number of applies waiting for the next flush.
+     */
+    private int pendingApplies;
+    private boolean pending;
+    private long firstRequestTime;
+    private long deadline;
+    /**
+     * True while flush is queued on timer or on executor.
+     */
+    private boolean scheduled;
+    /**
+     * Number of flushes being written now.
+     */
+    private int writing;
+    /**
+     * Set by {@link #close()}, flushes are not posted after it.
+     */
+    private boolean closed;
+
+    ApplyScheduler(ExecutorProvider executor, long debounceMillis, long maxDelayMillis,
+                   ChangesWriter writer, @Nullable PreferencesMetrics metrics) {
+        this.executor = executor;
+        this.writer = writer;
+        this.metrics = metrics;
+        debounceNanos = TimeUnit.MILLISECONDS.toNanos(debounceMillis);
+        maxDelayNanos = TimeUnit.MILLISECONDS.toNanos(Math.max(debounceMillis, maxDelayMillis));
+    }
+
+    void schedule(Set<String> keys) {
+        long delay;
+        synchronized (lock) {
+            pendingKeys.addAll(keys);
+            pendingApplies++;
+            if (metrics != null) {
+                metrics.onApplyQueued(pendingApplies);
+            }
+            long now = System.nanoTime();
+            if (!pending) {
+                pending = true;
+                firstRequestTime = now;
+            }
+            deadline = Math.min(now + debounceNanos, firstRequestTime + maxDelayNanos);
+            if (scheduled) {
+                // queued flush will pick up these keys or move to new deadline.
+                if (metrics != null) {
+                    metrics.onFlushCoalesced();
+                }
+                return;
+            }
+            scheduled = true;
+            delay = deadline - now;
+        }
+        post(delay);
+    }
+
+    /**
+     * @return true if some applied changes are not written yet.
+     */
+    boolean isPending() {
+        synchronized (lock) {
+            return pending || scheduled || writing > 0;
+        }
+    }
+
+    /**
+     * Writes pending keys on calling thread after flush in progress is finished,
+     * later applies are not flushed.
+     */
+    void close() {
+        Set<String> keys;
+        synchronized (lock) {
+            closed = true;
+            while (writing > 0) {
+                try {
+                    lock.wait();
+                } catch (InterruptedException unused) {
+                }
+            }
+            keys = pendingKeys;
+            pendingKeys = new HashSet<>();
+            pendingApplies = 0;
+            pending = false;
+            // queued timer or flush does nothing after close.
+            scheduled = false;
+            writing++;
+        }
+        try {
+            if (!keys.isEmpty()) {
+                writer.write(keys);
+            }
+        } finally {
+            synchronized (lock) {
+                writing--;
+            }
+        }
+    }
+
+    private void post(long delayNanos) {
+        synchronized (lock) {
+            if (closed) {
+                scheduled = false;
+                return;
+            }
+        }
+        if (delayNanos <= 0) {
+            executor.get().execute(this::flush);
+        } else {
+            timer().schedule(this::onTimer, delayNanos, TimeUnit.NANOSECONDS);
+        }
+    }
+
+    private void onTimer() {
+        long delay;
+        synchronized (lock) {
+            // debounce window may be extended by later applies.
+            delay = deadline - System.nanoTime();
+        }
+        post(delay);
+    }
+
+    private void flush() {
+        Set<String> keys;
+        synchronized (lock) {
+            if (closed) {
+                // pending keys are written by close().
+                scheduled = false;
+                return;
+            }
+            keys = pendingKeys;
+            pendingKeys = new HashSet<>();
+            pendingApplies = 0;
+            pending = false;
+            scheduled = false;
+            writing++;
+        }
+        try {
+            // there is no caller to report failure to.
+            writer.write(keys);
+        } finally {
+            synchronized (lock) {
+                writing--;
+                lock.notifyAll();
+            }
+        }
+    }
+
+    private static synchronized ScheduledExecutorService timer() {
+        if (timer == null) {
+            timer = new ScheduledThreadPoolExecutor(1, runnable -> {
+                Thread thread = new Thread(runnable, "BinaryPreferences-timer");
+                thread.setDaemon(true);
+                return thread;
+            });
+        }
+        return timer;
+    }
+}
@@ -6,30 +6,33 @@ import android.os.Handler;
 import android.os.Looper;
 import android.util.Log;
 
-import java.io.BufferedInputStream;
-import java.io.BufferedOutputStream;
-import java.io.ByteArrayOutputStream;
 import java.io.File;
-import java.io.FileInputStream;
 import java.io.FileNotFoundException;
-import java.io.FileOutputStream;
 import java.io.IOException;
-import java.io.ObjectInputStream;
-import java.io.ObjectOutputStream;
+import java.nio.ByteBuffer;
 import java.nio.charset.StandardCharsets;
 import java.util.ArrayList;
-import java.util.Arrays;
+import java.util.Collection;
+import java.util.Collections;
 import java.util.HashMap;
 import java.util.HashSet;
 import java.util.Map;
 import java.util.Set;
+import java.util.concurrent.CopyOnWriteArrayList;
+import java.util.concurrent.ExecutionException;
 import java.util.concurrent.Executor;
+import java.util.concurrent.ExecutorService;
 import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.FutureTask;
+import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.ThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
 
 import androidx.annotation.AnyThread;
 import androidx.annotation.NonNull;
 import androidx.annotation.Nullable;
-import androidx.collection.ArrayMap;
 
 /**
  * Reads and writes {@link SharedPreferences} into binary file.
@@ -37,78 +40,190 @@ import androidx.collection.ArrayMap;
 @AnyThread
 public class BinaryPreferences implements SharedPreferences {
     private static final String TAG = BinaryPreferences.class.getSimpleName();
-    private static final byte TYPE_STRING = 0;
-    private static final byte TYPE_STRING_SET = 1;
-    private static final byte TYPE_INT = 2;
-    private static final byte TYPE_BOOLEAN = 3;
-    private static final byte TYPE_LONG = 4;
-    private static final byte TYPE_FLOAT = 5;
+
+    /**
+     * Maximum number of segments loaded concurrently.
+     */
+    private static final int LOAD_THREADS = 4;
+    @Nullable
+    private static ExecutorService loadExecutor;
 
     private final Object lock = new Object();
+    /**
+     * Runs apply flushes and compactions, see {@link #reportingExecutor}.
+     */
     private final ExecutorProvider applyExecutor;
-    private ArrayList<OnSharedPreferenceChangeListener> listeners = new ArrayList<>();
-
-    private ArrayMap<Key, ValueHolder> values = new ArrayMap<>();
+    /**
+     * Executor created by this store when it's not set in options, shut down by {@link #close()}.
+     */
+    @Nullable
+    private final OwnExecutorProvider ownExecutor;
+    private final ApplyScheduler applyScheduler;
+    private final GroupCommit groupCommit = new GroupCommit(this::writeChanges);
+    private final Options options;
+    private final CopyOnWriteArrayList<OnSharedPreferenceChangeListener> listeners =
+            new CopyOnWriteArrayList<>();
+    private final CopyOnWriteArrayList<ChangeDispatcher> changeDispatchers =
+            new CopyOnWriteArrayList<>();
+
+    /**
+     * Keys are distributed between segments by hash, each segment has its own file.
+     */
+    private final Segment[] segments;
     private final File preferencesFile;
     private final Handler mainThreadHandler = new Handler(Looper.getMainLooper());
-    private boolean loaded = false;
+    private volatile boolean loaded = false;
     private Throwable throwable = null;
+    private final FutureTask<SharedPreferences> loadTask =
+            new FutureTask<>(this::readPreferences, this);
+    /**
+     * Guarded by {@link #lock}, null after load is finished.
+     */
+    @Nullable
+    private ArrayList<OnLoadedListener> loadedListeners = new ArrayList<>();
+    /**
+     * Editor returned after commit or apply, guarded by {@link #lock}.
+     */
+    @Nullable
+    private SingleWriterEditor pooledEditor;
+    /**
+     * Called when store has no pending writes after flush or compaction.
+     */
+    @Nullable
+    private volatile Runnable writesFinishedListener;
 
     public BinaryPreferences(@NonNull Context context, @NonNull String preferencesName) {
         this(new File(context.getApplicationInfo().dataDir, preferencesName));
     }
 
+    public BinaryPreferences(@NonNull Context context, @NonNull String preferencesName,
+                             @NonNull Options options) {
+        this(new File(context.getApplicationInfo().dataDir, preferencesName), options);
+    }
+
     public BinaryPreferences(@NonNull File preferencesFile) {
-        this.preferencesFile = preferencesFile;
-        this.applyExecutor = createExecutorProvider(this);
-        readPreferences();
+        this(preferencesFile, new Options());
     }
 
     public BinaryPreferences(@NonNull File preferencesFile, @NonNull Executor applyExecutor) {
-        this.preferencesFile = preferencesFile;
-        this.applyExecutor = createExecutorProvider(applyExecutor);
-        readPreferences();
+        this(preferencesFile, new Options().setApplyExecutor(applyExecutor));
     }
 
-    private static Executor createExecutor() {
-        return Executors.newSingleThreadExecutor();
+    public BinaryPreferences(@NonNull File preferencesFile, @NonNull Options options) {
+        this.preferencesFile = preferencesFile;
+        this.options = options;
+        this.ownExecutor = options.applyExecutor == null ? new OwnExecutorProvider(this) : null;
+        this.applyExecutor = reportingExecutor(ownExecutor != null ?
+                ownExecutor : createExecutorProvider(options.applyExecutor));
+        this.applyScheduler = new ApplyScheduler(applyExecutor, options.applyDebounceMillis,
+                options.applyMaxDelayMillis, this::writeChanges, options.metrics);
+        int segmentsCount = options.segments;
+        segments = new Segment[segmentsCount];
+        if (segmentsCount == 1) {
+            segments[0] = new Segment(preferencesFile, options, applyExecutor, lock,
+                    this::notifyListeners);
+        } else {
+            for (int i = 0; i < segmentsCount; i++) {
+                segments[i] = new Segment(segmentFile(preferencesFile, segmentsCount, i),
+                        options, applyExecutor, lock, this::notifyListeners);
+            }
+        }
+        if (options.loadExecutor != null) {
+            loadFromDisk(options.loadExecutor);
+        } else {
+            loadTask.run();
+        }
     }
 
     private static ExecutorProvider createExecutorProvider(final Executor executor) {
         return () -> executor;
     }
 
-    private static ExecutorProvider createExecutorProvider(final Object lock) {
-        return new ExecutorProvider() {
-            @Nullable
-            private volatile Executor executor = null;
+    /**
+     * Checks for pending writes after each task, tasks are flushes and compactions.
+     */
+    private ExecutorProvider reportingExecutor(final ExecutorProvider executor) {
+        return () -> {
+            final Executor target = executor.get();
+            return task -> target.execute(() -> {
+                try {
+                    task.run();
+                } finally {
+                    onWriteFinished();
+                }
+            });
+        };
+    }
+
+    private void onWriteFinished() {
+        Runnable listener = writesFinishedListener;
+        if (listener != null && !hasPendingWrites()) {
+            listener.run();
+        }
+    }
+
+    /**
+     * Sets listener that is called on apply executor when store has no pending writes
+     * after flush or compaction, see {@link #hasPendingWrites()}.
+     */
+    void setWritesFinishedListener(@Nullable Runnable listener) {
+        writesFinishedListener = listener;
+    }
+
+    /**
+     * Creates single thread executor on first use.
+     */
+    private static final class OwnExecutorProvider implements ExecutorProvider {
+        private final Object lock;
+        @Nullable
+        private volatile ExecutorService executor = null;
 
-            @Override
-            public Executor get() {
-                if (executor == null) {
-                    synchronized (lock) {
-                        if (executor == null) {
-                            executor = createExecutor();
-                        }
+        OwnExecutorProvider(Object lock) {
+            this.lock = lock;
+        }
+
+        @Override
+        public Executor get() {
+            if (executor == null) {
+                synchronized (lock) {
+                    if (executor == null) {
+                        executor = Executors.newSingleThreadExecutor();
                     }
                 }
-                return executor;
             }
-        };
-    }
+            return executor;
+        }
 
-    private void loadFromDisk() {
-        synchronized (lock) {
-            if (loaded) {
+        /**
+         * Waits for queued tasks, executor rejects new tasks after it.
+         */
+        void shutdown() {
+            ExecutorService executor;
+            synchronized (lock) {
+                executor = this.executor;
+            }
+            if (executor == null) {
                 return;
             }
-            loaded = false;
-        }
-        new Thread("BinaryPreferences-load") {
-            public void run() {
-                readPreferences();
+            executor.shutdown();
+            while (true) {
+                try {
+                    if (executor.awaitTermination(Long.MAX_VALUE, TimeUnit.NANOSECONDS)) {
+                        return;
+                    }
+                } catch (InterruptedException unused) {
+                }
             }
-        }.start();
+        }
+    }
+
+    private void loadFromDisk(Executor executor) {
+        try {
+            executor.execute(loadTask);
+        } catch (RejectedExecutionException e) {
+            Log.e(TAG, "Load rejected, loading on calling thread", e);
+            loadTask.run();
+        }
     }
 
     private void readPreferences() {
@@ -117,457 +232,1230 @@ public class BinaryPreferences implements SharedPreferences {
                 return;
             }
         }
-        if (!preferencesFile.exists()) {
-            synchronized (lock) {
-                loaded = true;
+        try {
+            long start = options.metrics != null ? System.nanoTime() : 0;
+            if (segments.length == 1) {
+                segments[0].load();
+            } else {
+                loadSegments();
             }
-
-            return;
-        }
-        try (FileInputStream stream = new FileInputStream(preferencesFile)) {
-            try {
-                BufferedInputStream bis = new BufferedInputStream(stream);
-                ObjectInputStream ois = new ObjectInputStream(bis);
-
-                readValues(ois);
-            } catch (Exception e) {
-                throwable = e;
-                Log.e(TAG, "Read error", e);
+            if (options.metrics != null) {
+                long bytes = 0;
+                int keys = 0;
+                for (Segment segment : segments) {
+                    bytes += segment.loadedBytes;
+                    keys += segment.values.count();
+                }
+                options.metrics.onLoaded(System.nanoTime() - start, bytes, keys);
             }
         } catch (FileNotFoundException e) {
             Log.e(TAG, "File not found", e);
             throwable = e;
-        } catch (IOException e) {
+        } catch (Exception e) {
             Log.e(TAG, "Read error", e);
             throwable = e;
         } finally {
+            ArrayList<OnLoadedListener> listeners;
             synchronized (lock) {
                 loaded = true;
                 lock.notifyAll();
+                listeners = loadedListeners;
+                loadedListeners = null;
+            }
+            for (OnLoadedListener listener : listeners) {
+                notifyLoaded(listener);
             }
         }
     }
 
-    private void readValues(ObjectInputStream ois) throws IOException {
-        int count = ois.readInt();
-        values = new ArrayMap<>(count);
-        for (int i = 0; i < count; i++) {
-            // 1) name
-            // 1.1 name len
-            int nameLen = ois.readShort();
-            if (nameLen < 0) {
-                Log.e(TAG, "wrong len");
+    /**
+     * @return true when values are loaded and getters don't block.
+     */
+    public boolean isLoaded() {
+        return loaded;
+    }
+
+    /**
+     * Returns future that is completed with this instance when loading is finished.
+     * Read error is not reported by the future, it is thrown by getters.
+     */
+    @NonNull
+    public Future<SharedPreferences> getLoadFuture() {
+        return loadTask;
+    }
+
+    /**
+     * Calls listener on main thread when loading is finished, or soon if it's already loaded.
+     */
+    public void whenLoaded(@NonNull OnLoadedListener listener) {
+        synchronized (lock) {
+            if (loadedListeners != null) {
+                loadedListeners.add(listener);
+                return;
             }
-            // 1.2 name bytes
-            byte[] nameBytes = new byte[nameLen];
-            ois.readFully(nameBytes);
-            // 1.3 name hash
-            int hash = ois.readInt();
+        }
+        notifyLoaded(listener);
+    }
 
-            Key key = new Key(hash, nameBytes);
+    private void notifyLoaded(final OnLoadedListener listener) {
+        mainThreadHandler.post(() -> listener.onLoaded(this, throwable));
+    }
 
-            // 2) type
-            byte type = ois.readByte();
+    File getFile() {
+        return preferencesFile;
+    }
 
-            switch (type) {
-                case TYPE_STRING:
-                    values.put(key, new ValueHolder(type, readUTF(ois)));
-                    break;
-                case TYPE_STRING_SET:
-                    int setLength = ois.readInt();
-                    HashSet<String> set = new HashSet<>(setLength);
-                    for (int setIndex = 0; setIndex < setLength; setIndex++) {
-                        set.add(ois.readUTF());
-                    }
-                    values.put(key, new ValueHolder(type, set));
-                    break;
-                case TYPE_INT:
-                    values.put(key, new ValueHolder(type, ois.readInt()));
-                    break;
-                case TYPE_BOOLEAN:
-                    values.put(key, new ValueHolder(type, ois.readBoolean()));
-                    break;
-                case TYPE_LONG:
-                    values.put(key, new ValueHolder(type, ois.readLong()));
-                    break;
-                case TYPE_FLOAT:
-                    values.put(key, new ValueHolder(type, ois.readFloat()));
-                    break;
+    /**
+     * Returns rough number of bytes held by loaded values.
+     */
+    long estimatedSize() {
+        if (!loaded) {
+            return 0;
+        }
+        long size = 0;
+        for (Segment segment : segments) {
+            size += segment.values.estimatedSize();
+        }
+        return size;
+    }
+
+    /**
+     * @return true if changes made by {@link Editor#apply()} are not written yet
+     * or compaction of some segment is queued or running.
+     */
+    boolean hasPendingWrites() {
+        if (applyScheduler.isPending()) {
+            return true;
+        }
+        for (Segment segment : segments) {
+            if (segment.isCompacting()) {
+                return true;
+            }
+        }
+        return false;
+    }
+
+    /**
+     * Writes changes made by {@link Editor#apply()}, waits for compactions and releases
+     * resources: apply executor created by this store, and files kept open in multi-process
+     * mode. Values are still readable after it, but writes fail, so the store must not be
+     * edited anymore.
+     */
+    public void close() {
+        synchronized (lock) {
+            waitLoadedLocked();
+        }
+        applyScheduler.close();
+        if (ownExecutor != null) {
+            ownExecutor.shutdown();
+        }
+        for (Segment segment : segments) {
+            segment.close();
+        }
+    }
+
+    private static File segmentFile(File preferencesFile, int segmentsCount, int index) {
+        return new File(preferencesFile.getPath() + "." + segmentsCount + "." + index);
+    }
+
+    /**
+     * Loads segments in parallel, first segment is loaded by calling thread.
+     */
+    private void loadSegments() throws Exception {
+        if (preferencesFile.exists() && !segments[0].file.exists()) {
+            migrateToSegments();
+            return;
+        }
+        ArrayList<Future<?>> futures = new ArrayList<>(segments.length - 1);
+        ExecutorService executor = loadExecutor();
+        for (int i = 1; i < segments.length; i++) {
+            final Segment segment = segments[i];
+            futures.add(executor.submit(() -> {
+                segment.load();
+                return null;
+            }));
+        }
+        segments[0].load();
+        for (Future<?> future : futures) {
+            try {
+                future.get();
+            } catch (ExecutionException e) {
+                throw (Exception) e.getCause();
+            }
+        }
+    }
+
+    /**
+     * Splits values of single preferences file between segment files, the file is deleted
+     * after all segments are written.
+     */
+    private void migrateToSegments() throws IOException {
+        Segment source = new Segment(preferencesFile, options, applyExecutor, lock, null);
+        source.load();
+        HashMap<String, Object> values = new HashMap<>();
+        source.values.copyTo(values);
+        source.close();
+        EditBuffer[] puts = new EditBuffer[segments.length];
+        for (Map.Entry<String, ?> entry : values.entrySet()) {
+            int index = segmentIndex(entry.getKey());
+            if (puts[index] == null) {
+                puts[index] = new EditBuffer();
+            }
+            put(puts[index], entry.getKey(), entry.getValue());
+        }
+        for (int i = 0; i < segments.length; i++) {
+            if (puts[i] != null) {
+                segments[i].values = ValueStore.EMPTY.edit(Collections.<String>emptySet(),
+                        puts[i], new HashSet<>());
             }
+            if (!segments[i].writeSnapshot()) {
+                throw new IOException("Can't write " + segments[i].file);
+            }
+        }
+        if (!preferencesFile.delete()) {
+            Log.e(TAG, "Can't delete migrated file");
+        }
+    }
+
+    @SuppressWarnings("unchecked")
+    private static <T> void put(EditBuffer buffer, PreferenceKey<T> key, @Nullable T value) {
+        if (value == null) {
+            // put of null string removes the key and overrides previous puts.
+            buffer.put(key.name, ValueStore.TYPE_STRING, 0, null);
+            return;
+        }
+        switch (key.type) {
+            case ValueStore.TYPE_INT:
+                buffer.put(key.name, key.type, (Integer) value, null);
+                break;
+            case ValueStore.TYPE_LONG:
+                buffer.put(key.name, key.type, (Long) value, null);
+                break;
+            case ValueStore.TYPE_FLOAT:
+                buffer.put(key.name, key.type, Float.floatToRawIntBits((Float) value), null);
+                break;
+            case ValueStore.TYPE_BOOLEAN:
+                buffer.put(key.name, key.type, (Boolean) value ? 1 : 0, null);
+                break;
+            case ValueStore.TYPE_STRING_SET:
+                buffer.put(key.name, key.type, 0, CompactStringSet.copyOf((Set<String>) value));
+                break;
+            default:
+                buffer.put(key.name, key.type, 0, value);
+                break;
+        }
+    }
+
+    @SuppressWarnings("unchecked")
+    private static void put(EditBuffer buffer, String name, Object value) {
+        if (value instanceof Integer) {
+            buffer.put(name, ValueStore.TYPE_INT, (Integer) value, null);
+        } else if (value instanceof Long) {
+            buffer.put(name, ValueStore.TYPE_LONG, (Long) value, null);
+        } else if (value instanceof Float) {
+            buffer.put(name, ValueStore.TYPE_FLOAT, Float.floatToRawIntBits((Float) value), null);
+        } else if (value instanceof Boolean) {
+            buffer.put(name, ValueStore.TYPE_BOOLEAN, (Boolean) value ? 1 : 0, null);
+        } else if (value instanceof String) {
+            buffer.put(name, ValueStore.TYPE_STRING, 0, value);
+        } else if (value instanceof ByteBuffer) {
+            buffer.put(name, ValueStore.TYPE_BYTES, 0, value);
+        } else {
+            buffer.put(name, ValueStore.TYPE_STRING_SET, 0,
+                    CompactStringSet.copyOf((Set<String>) value));
+        }
+    }
+
+    private static synchronized ExecutorService loadExecutor() {
+        if (loadExecutor == null) {
+            int threads = Math.min(LOAD_THREADS, Runtime.getRuntime().availableProcessors());
+            ThreadPoolExecutor executor = new ThreadPoolExecutor(threads, threads,
+                    1, TimeUnit.SECONDS, new LinkedBlockingQueue<>(), runnable -> {
+                Thread thread = new Thread(runnable, "BinaryPreferences-load");
+                thread.setDaemon(true);
+                return thread;
+            });
+            executor.allowCoreThreadTimeOut(true);
+            loadExecutor = executor;
         }
+        return loadExecutor;
     }
 
-    private static String readUTF(ObjectInputStream ois) throws IOException {
-        int len = ois.readShort();
-        byte[] buf = new byte[len];
-        ois.readFully(buf);
-        return new String(buf, StandardCharsets.UTF_8);
+    private int segmentIndex(String name) {
+        return MappedSnapshot.spread(name.hashCode()) & (segments.length - 1);
+    }
+
+    private Segment segmentFor(String name) {
+        Segment[] segments = this.segments;
+        return segments.length == 1 ? segments[0] : segments[segmentIndex(name)];
+    }
+
+    /**
+     * Writes segments with changed keys.
+     *
+     * @return true if changes reached storage.
+     */
+    private boolean writeChanges(Set<String> keys) {
+        if (segments.length == 1) {
+            return segments[0].write();
+        }
+        boolean[] dirty = new boolean[segments.length];
+        for (String name : keys) {
+            dirty[segmentIndex(name)] = true;
+        }
+        boolean success = true;
+        for (int i = 0; i < segments.length; i++) {
+            if (dirty[i]) {
+                success &= segments[i].write();
+            }
+        }
+        return success;
     }
 
-    private static void writeUTF(ObjectOutputStream out, String str) throws IOException {
-        byte[] buf = str.getBytes(StandardCharsets.UTF_8);
-        out.writeShort(buf.length);
-        out.write(buf);
+    /**
+     * Returns keys of each segment, null for segments without keys.
+     */
+    @SuppressWarnings({"unchecked", "rawtypes"})
+    private ArrayList<String>[] splitBySegment(Collection<String> keys) {
+        ArrayList<String>[] segmentKeys = new ArrayList[segments.length];
+        for (String name : keys) {
+            int index = segmentIndex(name);
+            if (segmentKeys[index] == null) {
+                segmentKeys[index] = new ArrayList<>();
+            }
+            segmentKeys[index].add(name);
+        }
+        return segmentKeys;
     }
 
     @Override
     public Map<String, ?> getAll() {
-        synchronized (lock) {
-            awaitLoadedLocked();
-            HashMap<String, Object> result = new HashMap<>();
-            for (Map.Entry<Key, ValueHolder> entry : values.entrySet()) {
-                result.put(entry.getKey().text, entry.getValue().value);
-            }
-            return result;
+        awaitCurrent();
+        HashMap<String, Object> result = new HashMap<>();
+        for (Segment segment : segments) {
+            segment.values.copyTo(result);
         }
+        return result;
     }
 
     @Nullable
     @Override
     public String getString(String key, @Nullable String defValue) {
-        synchronized (lock) {
-            awaitLoadedLocked();
-            ValueHolder result = values.get(key);
-            return result != null ? (String) result.value : defValue;
-        }
+        return awaitLoaded(key).getString(key, defValue);
     }
 
     @Nullable
     @Override
     public Set<String> getStringSet(String key, @Nullable Set<String> defValues) {
-        synchronized (lock) {
-            awaitLoadedLocked();
-            ValueHolder result = values.get(key);
-            return result != null ? (Set<String>) result.value : defValues;
-        }
+        return awaitLoaded(key).getStringSet(key, defValues);
     }
 
     @Override
     public int getInt(String key, int defValue) {
-        synchronized (lock) {
-            awaitLoadedLocked();
-            ValueHolder result = values.get(key);
-            return result != null ? (Integer) result.value : defValue;
-        }
+        return awaitLoaded(key).getInt(key, defValue);
     }
 
     @Override
     public long getLong(String key, long defValue) {
-        synchronized (lock) {
-            awaitLoadedLocked();
-            ValueHolder result = values.get(key);
-            return result != null ? (Long) result.value : defValue;
-        }
+        return awaitLoaded(key).getLong(key, defValue);
     }
 
     @Override
     public float getFloat(String key, float defValue) {
-        synchronized (lock) {
-            awaitLoadedLocked();
-            ValueHolder result = values.get(key);
-            return result != null ? (Float) result.value : defValue;
-        }
+        return awaitLoaded(key).getFloat(key, defValue);
     }
 
     @Override
     public boolean getBoolean(String key, boolean defValue) {
-        synchronized (lock) {
-            awaitLoadedLocked();
-            ValueHolder result = values.get(key);
-            return result != null ? (Boolean) result.value : defValue;
-        }
+        return awaitLoaded(key).getBoolean(key, defValue);
     }
 
     @Override
     public boolean contains(String key) {
-        synchronized (lock) {
-            awaitLoadedLocked();
-            return values.containsKey(key);
+        return awaitLoaded(key).contains(key);
+    }
+
+    /**
+     * Returns read-only view of blob put by {@link BinaryEditor#putBytes}, stored blob is
+     * a region of mapped file so its content is not copied.
+     */
+    @Nullable
+    public ByteBuffer getBytes(String key, @Nullable ByteBuffer defValue) {
+        return awaitLoaded(key).getBytes(key, defValue);
+    }
+
+    /**
+     * Visits all keys without copying them into map, values are decoded only when visited.
+     */
+    public void forEach(@NonNull PreferenceVisitor visitor) {
+        awaitCurrent();
+        for (Segment segment : segments) {
+            segment.values.forEach(null, visitor);
+        }
+    }
+
+    /**
+     * Visits keys starting with {@code prefix}, other keys are skipped using sorted index.
+     */
+    public void forEach(@NonNull String prefix, @NonNull PreferenceVisitor visitor) {
+        awaitCurrent();
+        byte[] prefixBytes = prefix.getBytes(StandardCharsets.UTF_8);
+        for (Segment segment : segments) {
+            segment.values.forEach(prefixBytes, visitor);
         }
     }
 
-    private void awaitLoadedLocked() {
+    /**
+     * Returns copy of keys starting with {@code prefix} and their values.
+     */
+    @NonNull
+    public Map<String, ?> getAll(@NonNull String prefix) {
+        HashMap<String, Object> result = new HashMap<>();
+        forEach(prefix, result::put);
+        return result;
+    }
+
+    /**
+     * Returns value of the key or its default, see {@link PreferenceKey}.
+     */
+    @Nullable
+    @SuppressWarnings("unchecked")
+    public <T> T get(@NonNull PreferenceKey<T> key) {
+        return (T) awaitLoaded(key.name).get(key);
+    }
+
+    public int getInt(@NonNull PreferenceKey<Integer> key) {
+        return (int) awaitLoaded(key.name).getPrimitive(key);
+    }
+
+    public long getLong(@NonNull PreferenceKey<Long> key) {
+        return awaitLoaded(key.name).getPrimitive(key);
+    }
+
+    public float getFloat(@NonNull PreferenceKey<Float> key) {
+        return Float.intBitsToFloat((int) awaitLoaded(key.name).getPrimitive(key));
+    }
+
+    public boolean getBoolean(@NonNull PreferenceKey<Boolean> key) {
+        return awaitLoaded(key.name).getPrimitive(key) != 0;
+    }
+
+    /**
+     * Non-blocking variant of {@link #getAll()}.
+     *
+     * @return null if values are not loaded yet.
+     */
+    @Nullable
+    public Map<String, ?> getAllIfLoaded() {
+        return loaded ? getAll() : null;
+    }
+
+    /**
+     * Non-blocking variant of {@link #getString}.
+     *
+     * @return null if values are not loaded yet.
+     */
+    @Nullable
+    public String getStringIfLoaded(String key, @NonNull String defValue) {
+        ValueStore values = loadedValues(key);
+        return values != null ? values.getString(key, defValue) : null;
+    }
+
+    /**
+     * Non-blocking variant of {@link #getStringSet}.
+     *
+     * @return null if values are not loaded yet.
+     */
+    @Nullable
+    public Set<String> getStringSetIfLoaded(String key, @NonNull Set<String> defValues) {
+        ValueStore values = loadedValues(key);
+        return values != null ? values.getStringSet(key, defValues) : null;
+    }
+
+    /**
+     * Non-blocking variant of {@link #getInt}.
+     *
+     * @return null if values are not loaded yet.
+     */
+    @Nullable
+    public Integer getIntIfLoaded(String key, int defValue) {
+        ValueStore values = loadedValues(key);
+        return values != null ? values.getInt(key, defValue) : null;
+    }
+
+    /**
+     * Non-blocking variant of {@link #getLong}.
+     *
+     * @return null if values are not loaded yet.
+     */
+    @Nullable
+    public Long getLongIfLoaded(String key, long defValue) {
+        ValueStore values = loadedValues(key);
+        return values != null ? values.getLong(key, defValue) : null;
+    }
+
+    /**
+     * Non-blocking variant of {@link #getFloat}.
+     *
+     * @return null if values are not loaded yet.
+     */
+    @Nullable
+    public Float getFloatIfLoaded(String key, float defValue) {
+        ValueStore values = loadedValues(key);
+        return values != null ? values.getFloat(key, defValue) : null;
+    }
+
+    /**
+     * Non-blocking variant of {@link #getBoolean}.
+     *
+     * @return null if values are not loaded yet.
+     */
+    @Nullable
+    public Boolean getBooleanIfLoaded(String key, boolean defValue) {
+        ValueStore values = loadedValues(key);
+        return values != null ? values.getBoolean(key, defValue) : null;
+    }
+
+    /**
+     * Non-blocking variant of {@link #contains}.
+     *
+     * @return null if values are not loaded yet.
+     */
+    @Nullable
+    public Boolean containsIfLoaded(String key) {
+        ValueStore values = loadedValues(key);
+        return values != null ? values.contains(key) : null;
+    }
+
+    /**
+     * Returns current snapshot of segment with the key or null while loading is in progress.
+     */
+    @Nullable
+    private ValueStore loadedValues(String key) {
+        if (!loaded) {
+            return null;
+        }
+        if (throwable != null) {
+            throw new IllegalStateException(throwable);
+        }
+        return segmentFor(key).values;
+    }
+
+    /**
+     * Returns current snapshot of segment with the key.
+     */
+    private ValueStore awaitLoaded(String key) {
+        awaitLoaded();
+        Segment segment = segmentFor(key);
+        if (options.multiProcess) {
+            segment.reload();
+        }
+        return segment.values;
+    }
+
+    /**
+     * Same as {@link #awaitLoaded()}, also reads changes of other processes in
+     * multi-process mode.
+     */
+    private void awaitCurrent() {
+        awaitLoaded();
+        if (options.multiProcess) {
+            for (Segment segment : segments) {
+                segment.reload();
+            }
+        }
+    }
+
+    /**
+     * Reads changes written by other processes since the file was read and notifies listeners
+     * about changed keys. Getters check for changes of requested keys themselves, so this is
+     * needed only to receive changes without reading values.
+     * Does nothing unless multi-process mode is enabled. May block while this or other
+     * process writes the file.
+     */
+    public void reload() {
+        if (options.multiProcess) {
+            awaitCurrent();
+        }
+    }
+
+    /**
+     * Takes the lock only while loading is in progress.
+     */
+    private void awaitLoaded() {
+        if (!loaded) {
+            long start = options.metrics != null ? System.nanoTime() : 0;
+            synchronized (lock) {
+                waitLoadedLocked();
+            }
+            if (options.metrics != null) {
+                options.metrics.onLoadWait(System.nanoTime() - start);
+            }
+        }
+        if (throwable != null) {
+            throw new IllegalStateException(throwable);
+        }
+    }
+
+    private void waitLoadedLocked() {
         while (!loaded) {
             try {
                 lock.wait();
             } catch (InterruptedException unused) {
             }
         }
-        if (throwable != null) {
-            throw new IllegalStateException(throwable);
-        }
     }
 
     @Override
-    public Editor edit() {
+    public BinaryEditor edit() {
         return new BinaryEditor();
     }
 
-    @Override
-    public void registerOnSharedPreferenceChangeListener(OnSharedPreferenceChangeListener listener) {
+    /**
+     * Returns editor for frequent writes from single thread, it doesn't lock on puts and is
+     * reused after commit or apply, see {@link SingleWriterEditor}.
+     */
+    @NonNull
+    public SingleWriterEditor editSingleWriter() {
+        SingleWriterEditor editor;
         synchronized (lock) {
-            listeners.add(listener);
+            editor = pooledEditor;
+            pooledEditor = null;
         }
+        return editor != null ? editor : new SingleWriterEditor();
+    }
+
+    @Override
+    public void registerOnSharedPreferenceChangeListener(OnSharedPreferenceChangeListener listener) {
+        listeners.add(listener);
     }
 
     @Override
     public void unregisterOnSharedPreferenceChangeListener(OnSharedPreferenceChangeListener listener) {
+        listeners.remove(listener);
+    }
+
+    /**
+     * Registers listener that is called on main thread once with all keys changed by commit,
+     * keys of commits made before the call are delivered together.
+     */
+    public void registerOnPreferencesChangeListener(
+            @NonNull OnPreferencesChangeListener listener) {
+        registerOnPreferencesChangeListener(listener, mainThreadHandler::post);
+    }
+
+    /**
+     * Same as {@link #registerOnPreferencesChangeListener(OnPreferencesChangeListener)},
+     * but listener is called on given executor.
+     */
+    public void registerOnPreferencesChangeListener(
+            @NonNull OnPreferencesChangeListener listener, @NonNull Executor executor) {
+        changeDispatchers.add(new ChangeDispatcher(this, listener, executor));
+    }
+
+    public void unregisterOnPreferencesChangeListener(
+            @NonNull OnPreferencesChangeListener listener) {
+        for (ChangeDispatcher dispatcher : changeDispatchers) {
+            if (dispatcher.listener == listener) {
+                dispatcher.remove();
+                changeDispatchers.remove(dispatcher);
+                return;
+            }
+        }
+    }
+
+    /**
+     * Applies puts and removals of editor to loaded values and notifies listeners.
+     *
+     * @param clear      true if all stored values are removed before puts.
+     * @param editorLock guards state of editor, null if editor is used by single thread.
+     * @return names of changed keys.
+     */
+    private Set<String> commitToMemory(EditBuffer puts, Set<String> removedValues,
+                                       Set<String> removedPrefixes, boolean clear,
+                                       @Nullable Object editorLock) {
+        if (options.multiProcess && loaded) {
+            // puts are compared with current values of other processes.
+            for (Segment segment : segments) {
+                segment.reload();
+            }
+        }
+        PreferencesMetrics metrics = options.metrics;
+        long start = metrics != null ? System.nanoTime() : 0;
+        Set<String> changedValues;
         synchronized (lock) {
-            listeners.remove(listener);
+            if (metrics != null) {
+                metrics.onLockWait(System.nanoTime() - start);
+            }
+            // edits are applied on top of loaded values.
+            waitLoadedLocked();
+            if (editorLock == null) {
+                changedValues = editLocked(puts, removedValues, removedPrefixes, clear);
+            } else {
+                synchronized (editorLock) {
+                    changedValues = editLocked(puts, removedValues, removedPrefixes, clear);
+                }
+            }
+        }
+        if (!changedValues.isEmpty()) {
+            notifyListeners(changedValues);
+        }
+        return changedValues;
+    }
+
+    private Set<String> editLocked(EditBuffer puts, Set<String> removedValues,
+                                   Set<String> removedPrefixes, boolean clear) {
+        if (clear) {
+            removedValues = new HashSet<>(removedValues);
+            for (Segment segment : segments) {
+                segment.values.collectKeys(null, removedValues);
+            }
+        } else if (!removedPrefixes.isEmpty()) {
+            removedValues = new HashSet<>(removedValues);
+            for (String prefix : removedPrefixes) {
+                byte[] prefixBytes = prefix.getBytes(StandardCharsets.UTF_8);
+                for (Segment segment : segments) {
+                    segment.values.collectKeys(prefixBytes, removedValues);
+                }
+            }
+        }
+        HashSet<String> changedValues = new HashSet<>();
+        if (segments.length == 1) {
+            Segment segment = segments[0];
+            ValueStore values = segment.values.edit(removedValues, puts, changedValues);
+            if (!changedValues.isEmpty()) {
+                segment.update(values, changedValues);
+            }
+        } else {
+            editSegments(puts, removedValues, changedValues);
+        }
+        return changedValues;
+    }
+
+    private void editSegments(EditBuffer cachedValues, Set<String> removedValues,
+                              Set<String> changedValues) {
+        ArrayList<String>[] removed = splitBySegment(removedValues);
+        EditBuffer[] puts = new EditBuffer[segments.length];
+        for (int i = 0; i < cachedValues.size; i++) {
+            int index = segmentIndex(cachedValues.names[i]);
+            if (puts[index] == null) {
+                puts[index] = new EditBuffer();
+            }
+            puts[index].put(cachedValues.names[i], cachedValues.types[i],
+                    cachedValues.primitives[i], cachedValues.objects[i]);
+        }
+        for (int i = 0; i < segments.length; i++) {
+            if (removed[i] != null || puts[i] != null) {
+                HashSet<String> changed = new HashSet<>();
+                ValueStore values = segments[i].values.edit(
+                        removed[i] != null ? removed[i] : Collections.<String>emptyList(),
+                        puts[i] != null ? puts[i] : new EditBuffer(), changed);
+                if (!changed.isEmpty()) {
+                    segments[i].update(values, changed);
+                    changedValues.addAll(changed);
+                }
+            }
+        }
+    }
+
+    private void notifyListeners(final Set<String> keys) {
+        for (ChangeDispatcher dispatcher : changeDispatchers) {
+            dispatcher.dispatch(keys);
+        }
+        if (!listeners.isEmpty()) {
+            notifyKeyListeners(keys);
+        }
+    }
+
+    private void notifyKeyListeners(final Set<String> keys) {
+        if (Looper.myLooper() == Looper.getMainLooper()) {
+            for (String key : keys) {
+                for (OnSharedPreferenceChangeListener listener : listeners) {
+                    listener.onSharedPreferenceChanged(this, key);
+                }
+            }
+        } else {
+            // Run this function on the main thread.
+            mainThreadHandler.post(() -> notifyKeyListeners(keys));
         }
     }
 
-    private class BinaryEditor implements Editor {
+    /**
+     * Editor that also accepts {@link PreferenceKey} handles.
+     */
+    public final class BinaryEditor implements Editor {
         private final Object editorLock = new Object();
-        private final HashMap<Key, ValueHolder> cachedValues = new HashMap<>();
+        private final EditBuffer cachedValues = new EditBuffer();
         private final HashSet<String> removedValues = new HashSet<>();
-        private final HashSet<String> changedValues = new HashSet<>();
+        private final HashSet<String> removedPrefixes = new HashSet<>();
+        /**
+         * Reset by commit, so committing the editor again doesn't remove values put by others.
+         */
+        private boolean clear;
 
-        public BinaryEditor() {
+        private BinaryEditor() {
+        }
+
+        /**
+         * Puts value of the key, null removes it. The key is looked up by name, cached
+         * place of the handle is used only by reads.
+         */
+        public <T> BinaryEditor put(@NonNull PreferenceKey<T> key, @Nullable T value) {
+            synchronized (editorLock) {
+                BinaryPreferences.put(cachedValues, key, value);
+                return this;
+            }
         }
 
         @Override
-        public Editor putString(String key, @Nullable String value) {
+        public BinaryEditor putString(String key, @Nullable String value) {
             synchronized (editorLock) {
-                changedValues.add(key);
-                cachedValues.put(new Key(key), new ValueHolder(TYPE_STRING, value));
+                // null value removes key on commit.
+                cachedValues.put(key, ValueStore.TYPE_STRING, 0, value);
                 return this;
             }
         }
 
         @Override
-        public Editor putStringSet(String key, @Nullable Set<String> values) {
+        public BinaryEditor putStringSet(String key, @Nullable Set<String> values) {
             synchronized (editorLock) {
-                changedValues.add(key);
-                cachedValues.put(new Key(key), new ValueHolder(TYPE_STRING_SET, values));
+                // caller may modify its set after put.
+                cachedValues.put(key, ValueStore.TYPE_STRING_SET, 0,
+                        values != null ? CompactStringSet.copyOf(values) : null);
+                return this;
+            }
+        }
+
+        /**
+         * Puts copy of bytes, null removes the key.
+         */
+        public BinaryEditor putBytes(String key, @Nullable byte[] value) {
+            synchronized (editorLock) {
+                cachedValues.put(key, ValueStore.TYPE_BYTES, 0,
+                        value != null ? ByteBuffer.wrap(value.clone()).asReadOnlyBuffer() : null);
+                return this;
+            }
+        }
+
+        /**
+         * Puts copy of remaining bytes of the buffer without changing its position,
+         * null removes the key.
+         */
+        public BinaryEditor putByteBuffer(String key, @Nullable ByteBuffer value) {
+            synchronized (editorLock) {
+                ByteBuffer copy = null;
+                if (value != null) {
+                    copy = ByteBuffer.allocate(value.remaining());
+                    copy.put(value.duplicate());
+                    copy.flip();
+                    copy = copy.asReadOnlyBuffer();
+                }
+                cachedValues.put(key, ValueStore.TYPE_BYTES, 0, copy);
                 return this;
             }
         }
 
         @Override
-        public Editor putInt(String key, int value) {
+        public BinaryEditor putInt(String key, int value) {
             synchronized (editorLock) {
-                changedValues.add(key);
-                cachedValues.put(new Key(key), new ValueHolder(TYPE_INT, value));
+                cachedValues.put(key, ValueStore.TYPE_INT, value, null);
                 return this;
             }
         }
 
         @Override
-        public Editor putLong(String key, long value) {
+        public BinaryEditor putLong(String key, long value) {
             synchronized (editorLock) {
-                changedValues.add(key);
-                cachedValues.put(new Key(key), new ValueHolder(TYPE_LONG, value));
+                cachedValues.put(key, ValueStore.TYPE_LONG, value, null);
                 return this;
             }
         }
 
         @Override
-        public Editor putFloat(String key, float value) {
+        public BinaryEditor putFloat(String key, float value) {
             synchronized (editorLock) {
-                changedValues.add(key);
-                cachedValues.put(new Key(key), new ValueHolder(TYPE_FLOAT, value));
+                cachedValues.put(key, ValueStore.TYPE_FLOAT, Float.floatToRawIntBits(value), null);
                 return this;
             }
         }
 
         @Override
-        public Editor putBoolean(String key, boolean value) {
+        public BinaryEditor putBoolean(String key, boolean value) {
             synchronized (editorLock) {
-                changedValues.add(key);
-                cachedValues.put(new Key(key), new ValueHolder(TYPE_BOOLEAN, value));
+                cachedValues.put(key, ValueStore.TYPE_BOOLEAN, value ? 1 : 0, null);
                 return this;
             }
         }
 
         @Override
-        public Editor remove(String key) {
+        public BinaryEditor remove(String key) {
             synchronized (editorLock) {
                 removedValues.add(key);
                 return this;
             }
         }
 
+        /**
+         * Removes all keys starting with {@code prefix} when committed, puts of this editor
+         * are applied after removal.
+         */
+        public BinaryEditor removeByPrefix(@NonNull String prefix) {
+            synchronized (editorLock) {
+                removedPrefixes.add(prefix);
+                return this;
+            }
+        }
+
+        /**
+         * Removes all stored values when committed, puts of this editor are applied
+         * after removal.
+         */
         @Override
-        public Editor clear() {
+        public BinaryEditor clear() {
             synchronized (editorLock) {
-                cachedValues.clear();
+                clear = true;
                 return this;
             }
         }
 
         @Override
         public boolean commit() {
-            commitToMemory();
-            saveToFile(values);
-            return true;
+            Set<String> changedValues = commitToMemory();
+            if (changedValues.isEmpty()) {
+                return true;
+            }
+            // concurrent commits are written together.
+            return groupCommit.commit(changedValues);
         }
 
         @Override
         public void apply() {
-            commitToMemory();
-            applyExecutor.get().execute(new ApplyRunnable(values));
+            Set<String> changedValues = commitToMemory();
+            if (changedValues.isEmpty()) {
+                return;
+            }
+            applyScheduler.schedule(changedValues);
         }
 
-        private void commitToMemory() {
-            synchronized (lock) {
-                synchronized (editorLock) {
-                    for (String removedValue : removedValues) {
-                        values.remove(removedValue);
-                    }
-                    values.putAll(cachedValues);
-                    changedValues.addAll(removedValues);
-                }
+        /**
+         * @return keys changed by this call, editor may be committed by several threads.
+         */
+        private Set<String> commitToMemory() {
+            boolean clear;
+            synchronized (editorLock) {
+                clear = this.clear;
+                this.clear = false;
             }
-            notifyListeners(changedValues);
+            return BinaryPreferences.this.commitToMemory(cachedValues, removedValues,
+                    removedPrefixes, clear, editorLock);
         }
+    }
 
-        private void notifyListeners(final Set<String> keys) {
-            if (Looper.myLooper() == Looper.getMainLooper()) {
-                for (String key : keys) {
-                    for (OnSharedPreferenceChangeListener listener : listeners) {
-                        listener.onSharedPreferenceChanged(BinaryPreferences.this, key);
-                    }
-                }
-            } else {
-                // Run this function on the main thread.
-                mainThreadHandler.post(() -> notifyListeners(keys));
-            }
+    /**
+     * Editor that is used by one thread at a time: puts are recorded without locking
+     * and its buffers are cleared by {@link #commit()} or {@link #apply()} for next
+     * {@link #editSingleWriter()} call, so it must not be touched after that.
+     */
+    public final class SingleWriterEditor implements Editor {
+        private final EditBuffer cachedValues = new EditBuffer();
+        private final HashSet<String> removedValues = new HashSet<>();
+        private final HashSet<String> removedPrefixes = new HashSet<>();
+        private boolean clear;
+
+        private SingleWriterEditor() {
         }
 
-        private void saveToFile(ArrayMap<Key, ValueHolder> values) {
-            if (preferencesFile.exists()) {
-                if (!preferencesFile.delete()) {
-                    Log.e(TAG, "Can't delete existing file");
-                }
-            }
-            try {
-                preferencesFile.createNewFile();
-                FileOutputStream fos = new FileOutputStream(preferencesFile);
-                BufferedOutputStream bos = new BufferedOutputStream(fos);
-                bos.write(getBytes(values));
-                bos.close();
-            } catch (Exception e) {
-                Log.e(TAG, "Save error", e);
-            }
-        }
-
-        private byte[] getBytes(ArrayMap<Key, ValueHolder> values) throws IOException {
-            try (ByteArrayOutputStream bos = new ByteArrayOutputStream()) {
-                ObjectOutputStream out;
-                out = new ObjectOutputStream(bos);
-
-                out.writeInt(values.size());
-
-                for (Map.Entry<Key, ValueHolder> entry : values.entrySet()) {
-                    // 1) name
-                    // 1.1 name len
-                    Key key = entry.getKey();
-                    out.writeShort(key.bytes.length);
-
-                    // 1.2 name bytes
-                    out.write(key.bytes);
-                    // 1.3 name hash
-                    out.writeInt(key.hash);
-
-                    ValueHolder valueHolder = entry.getValue();
-
-                    out.writeByte(valueHolder.type);
-
-                    Object value = valueHolder.value;
-                    switch (valueHolder.type) {
-                        case TYPE_STRING:
-                            writeUTF(out, (String) value);
-                            break;
-                        case TYPE_STRING_SET:
-                            Set<String> set = (Set<String>) value;
-                            int setLength = set.size();
-                            out.writeInt(setLength);
-
-                            for (String str : set) {
-                                writeUTF(out, str);
-                            }
-                            break;
-                        case TYPE_INT:
-                            out.writeInt((Integer) value);
-                            break;
-                        case TYPE_BOOLEAN:
-                            out.writeBoolean((Boolean) value);
-                            break;
-                        case TYPE_LONG:
-                            out.writeLong((Long) value);
-                            break;
-                        case TYPE_FLOAT:
-                            out.writeFloat((Float) value);
-                            break;
-                    }
-                }
-                out.flush();
-                return bos.toByteArray();
+        /**
+         * Puts value of the key, null removes it.
+         */
+        public <T> SingleWriterEditor put(@NonNull PreferenceKey<T> key, @Nullable T value) {
+            BinaryPreferences.put(cachedValues, key, value);
+            return this;
+        }
+
+        @Override
+        public SingleWriterEditor putString(String key, @Nullable String value) {
+            cachedValues.put(key, ValueStore.TYPE_STRING, 0, value);
+            return this;
+        }
+
+        @Override
+        public SingleWriterEditor putStringSet(String key, @Nullable Set<String> values) {
+            cachedValues.put(key, ValueStore.TYPE_STRING_SET, 0,
+                    values != null ? CompactStringSet.copyOf(values) : null);
+            return this;
+        }
+
+        /**
+         * Puts copy of bytes, null removes the key.
+         */
+        public SingleWriterEditor putBytes(String key, @Nullable byte[] value) {
+            cachedValues.put(key, ValueStore.TYPE_BYTES, 0,
+                    value != null ? ByteBuffer.wrap(value.clone()).asReadOnlyBuffer() : null);
+            return this;
+        }
+
+        /**
+         * Puts copy of remaining bytes of the buffer without changing its position,
+         * null removes the key.
+         */
+        public SingleWriterEditor putByteBuffer(String key, @Nullable ByteBuffer value) {
+            ByteBuffer copy = null;
+            if (value != null) {
+                copy = ByteBuffer.allocate(value.remaining());
+                copy.put(value.duplicate());
+                copy.flip();
+                copy = copy.asReadOnlyBuffer();
             }
+            cachedValues.put(key, ValueStore.TYPE_BYTES, 0, copy);
+            return this;
         }
 
-        private class ApplyRunnable implements Runnable {
-            private final ArrayMap<Key, ValueHolder> values;
+        @Override
+        public SingleWriterEditor putInt(String key, int value) {
+            cachedValues.put(key, ValueStore.TYPE_INT, value, null);
+            return this;
+        }
 
-            public ApplyRunnable(ArrayMap<Key, ValueHolder> values) {
-                this.values = values;
+        @Override
+        public SingleWriterEditor putLong(String key, long value) {
+            cachedValues.put(key, ValueStore.TYPE_LONG, value, null);
+            return this;
+        }
+
+        @Override
+        public SingleWriterEditor putFloat(String key, float value) {
+            cachedValues.put(key, ValueStore.TYPE_FLOAT, Float.floatToRawIntBits(value), null);
+            return this;
+        }
+
+        @Override
+        public SingleWriterEditor putBoolean(String key, boolean value) {
+            cachedValues.put(key, ValueStore.TYPE_BOOLEAN, value ? 1 : 0, null);
+            return this;
+        }
+
+        @Override
+        public SingleWriterEditor remove(String key) {
+            removedValues.add(key);
+            return this;
+        }
+
+        /**
+         * Removes all keys starting with {@code prefix} when committed, puts of this editor
+         * are applied after removal.
+         */
+        public SingleWriterEditor removeByPrefix(@NonNull String prefix) {
+            removedPrefixes.add(prefix);
+            return this;
+        }
+
+        /**
+         * Removes all stored values when committed, puts of this editor are applied
+         * after removal.
+         */
+        @Override
+        public SingleWriterEditor clear() {
+            clear = true;
+            return this;
+        }
+
+        @Override
+        public boolean commit() {
+            Set<String> changedValues = commitToMemory(cachedValues, removedValues,
+                    removedPrefixes, clear, null);
+            recycle();
+            // concurrent commits are written together.
+            return changedValues.isEmpty() || groupCommit.commit(changedValues);
+        }
+
+        @Override
+        public void apply() {
+            Set<String> changedValues = commitToMemory(cachedValues, removedValues,
+                    removedPrefixes, clear, null);
+            recycle();
+            if (!changedValues.isEmpty()) {
+                applyScheduler.schedule(changedValues);
             }
+        }
 
-            @Override
-            public void run() {
-                saveToFile(values);
+        private void recycle() {
+            cachedValues.clear();
+            removedValues.clear();
+            removedPrefixes.clear();
+            clear = false;
+            synchronized (lock) {
+                pooledEditor = this;
             }
         }
     }
 
-    private static class Key {
-        final int hash;
-        final byte[] bytes;
+    /**
+     * Receives all keys changed by commit in single call.
+     */
+    public interface OnPreferencesChangeListener {
+        void onPreferencesChanged(@NonNull SharedPreferences preferences,
+                                  @NonNull Set<String> keys);
+    }
+
+    /**
+     * Receives result of asynchronous loading.
+     */
+    public interface OnLoadedListener {
+        /**
+         * @param error read error or null if values were loaded.
+         */
+        void onLoaded(@NonNull BinaryPreferences preferences, @Nullable Throwable error);
+    }
 
+    /**
+     * Optional settings of {@link BinaryPreferences}.
+     */
+    public static final class Options {
         @Nullable
-        private String text;
+        Executor applyExecutor;
+        @Nullable
+        Executor loadExecutor;
+        @Nullable
+        PreferencesMetrics metrics;
+        boolean deltaLog = false;
+        long compactionThreshold = 64 * 1024;
+        float compactionRatio = 1f;
+        long applyDebounceMillis = 0;
+        long applyMaxDelayMillis = 0;
+        int segments = 1;
+        boolean stringTable = false;
+        int compressionThreshold = 0;
+        boolean offHeap = false;
+        boolean multiProcess = false;
+
+        /**
+         * Executor for writing changes after {@link Editor#apply()}.
+         */
+        public Options setApplyExecutor(@NonNull Executor applyExecutor) {
+            this.applyExecutor = applyExecutor;
+            return this;
+        }
 
-        public Key(int hash, byte[] asBytes) {
-            this.hash = hash;
-            this.bytes = asBytes;
+        /**
+         * Loads file on the executor instead of calling thread, constructor returns
+         * immediately. Getters block until loading is finished, use {@link #whenLoaded},
+         * {@link #getLoadFuture()} or non-blocking getters to avoid it.
+         */
+        public Options setLoadExecutor(@NonNull Executor loadExecutor) {
+            this.loadExecutor = loadExecutor;
+            return this;
         }
 
-        public Key(String key) {
-            hash = key.hashCode();
-            text = key;
-            bytes = key.getBytes(StandardCharsets.UTF_8);
+        /**
+         * Reports load, write and waiting timings to {@code metrics}, see
+         * {@link HistogramMetrics}.
+         */
+        public Options setMetrics(@NonNull PreferencesMetrics metrics) {
+            this.metrics = metrics;
+            return this;
         }
 
-        String getText() {
-            if (text == null) {
-                text = new String(bytes, StandardCharsets.UTF_8);
-            }
-            return text;
+        /**
+         * Enables log-structured persistence: each commit appends only changed and removed keys
+         * to the file instead of rewriting it.
+         */
+        public Options setDeltaLogEnabled(boolean enabled) {
+            deltaLog = enabled;
+            return this;
         }
 
-        @Override
-        public int hashCode() {
-            return hash;
+        /**
+         * Log is compacted into new snapshot on background thread when its size reaches
+         * {@code thresholdBytes} or {@code ratio} of the snapshot size.
+         */
+        public Options setCompactionThreshold(long thresholdBytes, float ratio) {
+            compactionThreshold = thresholdBytes;
+            compactionRatio = ratio;
+            return this;
         }
 
-        @Override
-        public boolean equals(@Nullable Object obj) {
-            if (obj instanceof Key) {
-                Key another = (Key) obj;
-                return Arrays.equals(another.bytes, bytes);
+        /**
+         * Delays writing after {@link Editor#apply()} by {@code debounceMillis} since last
+         * apply, but no more than {@code maxDelayMillis} since first unwritten one, so burst
+         * of applies is written once. Pending write is coalesced with next applies even
+         * without delay.
+         */
+        public Options setApplyDelay(long debounceMillis, long maxDelayMillis) {
+            applyDebounceMillis = debounceMillis;
+            applyMaxDelayMillis = maxDelayMillis;
+            return this;
+        }
+
+        /**
+         * Writes snapshots with string table: equal strings and string set members are
+         * stored once and loaded into one shared instance. Makes files with repeated values
+         * smaller, but snapshot can't reuse unchanged records of previous one as is.
+         */
+        public Options setStringTableEnabled(boolean enabled) {
+            stringTable = enabled;
+            return this;
+        }
+
+        /**
+         * Deflates written strings and blobs of at least {@code thresholdBytes} bytes when it
+         * makes them smaller, strings are inflated on first read and blobs into heap copy
+         * on each read. Values that are not changed keep their format until rewritten.
+         *
+         * @param thresholdBytes minimal length of compressed value, 0 disables compression.
+         */
+        public Options setCompressionThreshold(int thresholdBytes) {
+            if (thresholdBytes < 0) {
+                throw new IllegalArgumentException("Negative compression threshold: " +
+                        thresholdBytes);
             }
-            return false;
+            compressionThreshold = thresholdBytes;
+            return this;
         }
-    }
 
-    private static class ValueHolder {
-        final byte type;
-        final Object value;
+        /**
+         * Keeps only values changed since last snapshot on heap: after snapshot is written,
+         * values are read from its mapping. Heap footprint of large store stays small
+         * regardless of number of keys, but decoded values are dropped on each snapshot
+         * and decoded again on next read.
+         */
+        public Options setOffHeapEnabled(boolean enabled) {
+            offHeap = enabled;
+            return this;
+        }
 
-        public ValueHolder(byte type, Object value) {
-            this.type = type;
-            this.value = value;
+        /**
+         * Lets several processes use the file: writes take lock of {@code <file>.lock}
+         * and write on top of changes of other processes. Getters cheaply check if other
+         * process has written the file and read only changed keys, listeners are notified
+         * about them. Enables delta log, each process must have one instance per file,
+         * see {@link PreferencesRegistry}: file locks are held by process, so other instance
+         * of the file fails to lock it while it's locked by the first one, then its write
+         * fails and its getters keep values read before.
+         * Reads are not lock-free in this mode: getter that finds changes of other process
+         * waits for the file lock, so it may wait for write and fsync of this or other
+         * process. Getters without external changes only read the mapped generation.
+         */
+        public Options setMultiProcessEnabled(boolean enabled) {
+            multiProcess = enabled;
+            return this;
+        }
+
+        /**
+         * Splits keys by hash between {@code count} files, so write rewrites or appends
+         * only files with changed keys and files are loaded in parallel.
+         * Values of single file store are moved to segments on first load, changing count
+         * of existing segments is not supported.
+         *
+         * @param count power of two.
+         */
+        public Options setSegments(int count) {
+            if (count <= 0 || Integer.bitCount(count) != 1) {
+                throw new IllegalArgumentException("Segments count must be power of two: " +
+                        count);
+            }
+            segments = count;
+            return this;
         }
     }
 }
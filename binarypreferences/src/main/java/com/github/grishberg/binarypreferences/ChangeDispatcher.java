@@ -0,0 +1,61 @@
+package com.github.grishberg.binarypreferences;
+
+import java.util.Collections;
+import java.util.HashSet;
+import java.util.Set;
+import java.util.concurrent.Executor;
+
+/**
+ * Delivers changed keys to one {@link BinaryPreferences.OnPreferencesChangeListener}.
+ * Commits made before queued dispatch runs are merged into it, so listener gets one
+ * call with all keys changed since previous call.
+ */
+final class ChangeDispatcher implements Runnable {
+    final BinaryPreferences.OnPreferencesChangeListener listener;
+    private final BinaryPreferences preferences;
+    private final Executor executor;
+    private final Object lock = new Object();
+    /**
+     * Keys changed since last dispatch, null when nothing is queued.
+     */
+    private HashSet<String> pendingKeys;
+    private volatile boolean removed;
+
+    ChangeDispatcher(BinaryPreferences preferences,
+                     BinaryPreferences.OnPreferencesChangeListener listener, Executor executor) {
+        this.preferences = preferences;
+        this.listener = listener;
+        this.executor = executor;
+    }
+
+    void dispatch(Set<String> keys) {
+        synchronized (lock) {
+            if (pendingKeys != null) {
+                // queued dispatch will deliver these keys too.
+                pendingKeys.addAll(keys);
+                return;
+            }
+            pendingKeys = new HashSet<>(keys);
+        }
+        executor.execute(this);
+    }
+
+    /**
+     * Stops delivery, queued dispatch is dropped.
+     */
+    void remove() {
+        removed = true;
+    }
+
+    @Override
+    public void run() {
+        Set<String> keys;
+        synchronized (lock) {
+            keys = pendingKeys;
+            pendingKeys = null;
+        }
+        if (!removed) {
+            listener.onPreferencesChanged(preferences, Collections.unmodifiableSet(keys));
+        }
+    }
+}
@@ -0,0 +1,13 @@
+package com.github.grishberg.binarypreferences;
+
+import java.util.Set;
+
+/**
+ * Writes current values of changed keys to file.
+ */
+interface ChangesWriter {
+    /**
+     * @return true if changes reached storage.
+     */
+    boolean write(Set<String> keys);
+}
@@ -0,0 +1,186 @@
+package com.github.grishberg.binarypreferences;
+
+import java.nio.ByteBuffer;
+import java.nio.charset.StandardCharsets;
+import java.util.AbstractSet;
+import java.util.Arrays;
+import java.util.Collection;
+import java.util.Iterator;
+import java.util.NoSuchElementException;
+
+import androidx.annotation.NonNull;
+import androidx.annotation.Nullable;
+
+/**
+ * Read-only string set stored as sorted array, {@link #contains} is binary search.
+ * Set read from file keeps offsets of encoded members sorted by their UTF-8 bytes and
+ * decodes each member on first access.
+ */
+final class CompactStringSet extends AbstractSet<String> {
+    private static final CompactStringSet EMPTY = new CompactStringSet(new String[0]);
+
+    /**
+     * Members sorted by {@link String#compareTo} or decoded members in order of
+     * {@link #offsets}, null until decoded.
+     */
+    private final String[] members;
+    /**
+     * Offsets of {@code int length, UTF-8 bytes} of members in {@link #source}
+     * sorted by bytes, null if members are not read from file.
+     */
+    @Nullable
+    private final int[] offsets;
+    @Nullable
+    private final ByteBuffer source;
+
+    private CompactStringSet(String[] sortedMembers) {
+        members = sortedMembers;
+        offsets = null;
+        source = null;
+    }
+
+    private CompactStringSet(ByteBuffer source, int[] sortedOffsets) {
+        this.source = source;
+        offsets = sortedOffsets;
+        members = new String[sortedOffsets.length];
+    }
+
+    /**
+     * Returns immutable copy of strings, the set itself if it is already compact.
+     */
+    static CompactStringSet copyOf(Collection<String> strings) {
+        if (strings instanceof CompactStringSet) {
+            return (CompactStringSet) strings;
+        }
+        if (strings.isEmpty()) {
+            return EMPTY;
+        }
+        String[] members = strings.toArray(new String[0]);
+        Arrays.sort(members);
+        int size = 1;
+        for (int i = 1; i < members.length; i++) {
+            // source collection may be a list with duplicates.
+            if (!members[i].equals(members[size - 1])) {
+                members[size++] = members[i];
+            }
+        }
+        return new CompactStringSet(size == members.length ?
+                members : Arrays.copyOf(members, size));
+    }
+
+    /**
+     * Creates set of encoded members without decoding them.
+     *
+     * @param offsets offsets of {@code int length, UTF-8 bytes} of each member, sorted in place.
+     */
+    static CompactStringSet wrap(ByteBuffer source, int[] offsets) {
+        if (offsets.length == 0) {
+            return EMPTY;
+        }
+        if (!isSorted(source, offsets)) {
+            IntSort.sort(offsets, (a, b) -> compare(source, a, b));
+        }
+        return new CompactStringSet(source, offsets);
+    }
+
+    private static boolean isSorted(ByteBuffer source, int[] offsets) {
+        for (int i = 1; i < offsets.length; i++) {
+            if (compare(source, offsets[i - 1], offsets[i]) > 0) {
+                return false;
+            }
+        }
+        return true;
+    }
+
+    private static int compare(ByteBuffer source, int a, int b) {
+        int lengthA = source.getInt(a);
+        int lengthB = source.getInt(b);
+        int length = Math.min(lengthA, lengthB);
+        for (int i = 0; i < length; i++) {
+            int diff = (source.get(a + 4 + i) & 0xFF) - (source.get(b + 4 + i) & 0xFF);
+            if (diff != 0) {
+                return diff;
+            }
+        }
+        return lengthA - lengthB;
+    }
+
+    private static int compare(ByteBuffer source, int offset, byte[] bytes) {
+        int length = source.getInt(offset);
+        int common = Math.min(length, bytes.length);
+        for (int i = 0; i < common; i++) {
+            int diff = (source.get(offset + 4 + i) & 0xFF) - (bytes[i] & 0xFF);
+            if (diff != 0) {
+                return diff;
+            }
+        }
+        return length - bytes.length;
+    }
+
+    private String member(int index) {
+        String member = members[index];
+        if (member == null) {
+            int offset = offsets[index];
+            byte[] bytes = new byte[source.getInt(offset)];
+            ByteBuffer in = source.duplicate();
+            in.position(offset + 4);
+            in.get(bytes);
+            member = new String(bytes, StandardCharsets.UTF_8);
+            // racy but safe: strings are immutable.
+            members[index] = member;
+        }
+        return member;
+    }
+
+    @Override
+    public int size() {
+        return members.length;
+    }
+
+    @Override
+    public boolean contains(@Nullable Object o) {
+        if (!(o instanceof String)) {
+            return false;
+        }
+        if (offsets == null) {
+            return Arrays.binarySearch(members, o) >= 0;
+        }
+        byte[] bytes = ((String) o).getBytes(StandardCharsets.UTF_8);
+        int low = 0;
+        int high = offsets.length - 1;
+        while (low <= high) {
+            int middle = (low + high) >>> 1;
+            int diff = compare(source, offsets[middle], bytes);
+            if (diff < 0) {
+                low = middle + 1;
+            } else if (diff > 0) {
+                high = middle - 1;
+            } else {
+                // unpaired surrogates are encoded as '?', so bytes may match other string.
+                return member(middle).equals(o);
+            }
+        }
+        return false;
+    }
+
+    @NonNull
+    @Override
+    public Iterator<String> iterator() {
+        return new Iterator<String>() {
+            private int index;
+
+            @Override
+            public boolean hasNext() {
+                return index < members.length;
+            }
+
+            @Override
+            public String next() {
+                if (index >= members.length) {
+                    throw new NoSuchElementException();
+                }
+                return member(index++);
+            }
+        };
+    }
+}
@@ -0,0 +1,90 @@
+package com.github.grishberg.binarypreferences;
+
+import java.util.Arrays;
+
+import androidx.annotation.Nullable;
+
+/**
+ * Pending puts of editor packed into parallel arrays, primitive values are not boxed.
+ * Repeated put of the same key replaces previous value.
+ */
+final class EditBuffer {
+    private static final int INITIAL_CAPACITY = 8;
+
+    int size;
+    String[] names = new String[INITIAL_CAPACITY];
+    byte[] types = new byte[INITIAL_CAPACITY];
+    long[] primitives = new long[INITIAL_CAPACITY];
+    Object[] objects = new Object[INITIAL_CAPACITY];
+
+    /**
+     * Open addressing table of {@code index + 1} by name hash, 0 is empty slot.
+     */
+    private int[] table = new int[INITIAL_CAPACITY * 2];
+
+    void put(String name, byte type, long primitive, @Nullable Object object) {
+        int mask = table.length - 1;
+        int slot = name.hashCode() & mask;
+        while (table[slot] != 0) {
+            int index = table[slot] - 1;
+            if (names[index].equals(name)) {
+                set(index, name, type, primitive, object);
+                return;
+            }
+            slot = (slot + 1) & mask;
+        }
+        if (size == names.length) {
+            grow();
+            put(name, type, primitive, object);
+            return;
+        }
+        set(size, name, type, primitive, object);
+        size++;
+        table[slot] = size;
+    }
+
+    /**
+     * @return index of pending put or -1.
+     */
+    int indexOf(String name) {
+        int mask = table.length - 1;
+        for (int slot = name.hashCode() & mask; table[slot] != 0; slot = (slot + 1) & mask) {
+            int index = table[slot] - 1;
+            if (names[index].equals(name)) {
+                return index;
+            }
+        }
+        return -1;
+    }
+
+    void clear() {
+        Arrays.fill(names, 0, size, null);
+        Arrays.fill(objects, 0, size, null);
+        Arrays.fill(table, 0);
+        size = 0;
+    }
+
+    private void set(int index, String name, byte type, long primitive, @Nullable Object object) {
+        names[index] = name;
+        types[index] = type;
+        primitives[index] = primitive;
+        objects[index] = object;
+    }
+
+    private void grow() {
+        int capacity = names.length * 2;
+        names = Arrays.copyOf(names, capacity);
+        types = Arrays.copyOf(types, capacity);
+        primitives = Arrays.copyOf(primitives, capacity);
+        objects = Arrays.copyOf(objects, capacity);
+        table = new int[capacity * 2];
+        int mask = table.length - 1;
+        for (int i = 0; i < size; i++) {
+            int slot = names[i].hashCode() & mask;
+            while (table[slot] != 0) {
+                slot = (slot + 1) & mask;
+            }
+            table[slot] = i + 1;
+        }
+    }
+}
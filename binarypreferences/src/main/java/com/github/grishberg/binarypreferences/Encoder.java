@@ -0,0 +1,827 @@
+package com.github.grishberg.binarypreferences;
+
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.HashMap;
+import java.util.IdentityHashMap;
+import java.util.Set;
+import java.util.zip.Deflater;
+
+import androidx.annotation.Nullable;
+
+/**
+ * Writes snapshots and log records to file channel.
+ * Exact size is computed first and everything is encoded once into reusable direct buffer,
+ * unchanged records of mapped snapshot are not copied at all: they are written from
+ * the mapping with the same gathering write.
+ * Strings and blobs not shorter than compression threshold are deflated when it saves space,
+ * so computed size is upper bound.
+ * Not thread safe.
+ */
+final class Encoder {
+    private static final int MIN_CAPACITY = 4 * 1024;
+    /**
+     * Larger buffers are released after write instead of being kept for next one.
+     */
+    private static final int MAX_RETAINED_CAPACITY = 1024 * 1024;
+    private static final byte[] NOT_DEFLATED = new byte[0];
+
+    @Nullable
+    private ByteBuffer buffer;
+    /**
+     * Start and end offsets of unchanged record runs of base snapshot.
+     */
+    private int[] runs = new int[16];
+    private int runsSize;
+    /**
+     * Entry index or {@code -2 - record offset} of base snapshot for log record keys,
+     * -1 for removed ones.
+     */
+    private int[] positions = new int[16];
+    /**
+     * Minimal length of deflated values, 0 if compression is disabled.
+     */
+    private final int compressionThreshold;
+    @Nullable
+    private Deflater deflater;
+    private byte[] input = new byte[0];
+    private byte[] output = new byte[0];
+    /**
+     * Deflated blocks of values written by current and previous write, values are immutable
+     * so unchanged ones are not deflated again. {@link #NOT_DEFLATED} marks values that
+     * are not compressible.
+     */
+    private IdentityHashMap<Object, byte[]> deflated = new IdentityHashMap<>();
+    private IdentityHashMap<Object, byte[]> previousDeflated = new IdentityHashMap<>();
+
+    Encoder(int compressionThreshold) {
+        this.compressionThreshold = compressionThreshold;
+    }
+
+    /**
+     * Writes values in indexed format to current position of channel.
+     *
+     * @param stringTable store strings in string table, see {@link MappedSnapshot}.
+     * @return number of written bytes.
+     */
+    long writeSnapshot(FileChannel channel, ValueStore values,
+                       boolean stringTable) throws IOException {
+        startWrite();
+        if (stringTable || hasBlobs(values)) {
+            return writeDataSnapshot(channel, values, stringTable);
+        }
+        MappedSnapshot base = values.base;
+        // records of snapshot without string table and blobs are copied as is.
+        boolean copyBase = base != null && !base.blobs;
+        int count = values.count();
+        int tableSize = MappedSnapshot.tableSize(count);
+        int recordsStart = MappedSnapshot.HEADER_SIZE +
+                tableSize * MappedSnapshot.TABLE_ENTRY_SIZE;
+        int size = recordsStart;
+        for (int i = 0; i < values.size; i++) {
+            if (values.types[i] != ValueStore.TYPE_REMOVED) {
+                size += entrySize(values, i);
+            }
+        }
+        if (base != null && !copyBase) {
+            for (int record = base.recordsStart; record < base.recordsEnd;
+                 record = base.nextRecord(record)) {
+                if (!values.shadows(record)) {
+                    size += recordSize(base, record);
+                }
+            }
+        }
+
+        ByteBuffer out = obtain(size);
+        out.putInt(Segment.FORMAT_MAGIC);
+        out.put(Segment.FORMAT_VERSION);
+        out.putInt(count);
+        out.putInt(tableSize);
+        // end of records, known after base records are counted.
+        out.putInt(0);
+        for (int i = 0; i < tableSize; i++) {
+            out.putLong(0);
+        }
+        for (int i = 0; i < values.size; i++) {
+            if (values.types[i] != ValueStore.TYPE_REMOVED) {
+                putIndex(out, MappedSnapshot.HEADER_SIZE, tableSize, values.hashes[i],
+                        out.position());
+                putEntry(out, values, i);
+            }
+        }
+        if (base != null && !copyBase) {
+            for (int record = base.recordsStart; record < base.recordsEnd;
+                 record = base.nextRecord(record)) {
+                if (!values.shadows(record)) {
+                    putIndex(out, MappedSnapshot.HEADER_SIZE, tableSize, base.hashAt(record),
+                            out.position());
+                    putRecord(out, base, record);
+                }
+            }
+        }
+
+        int offset = out.position();
+        runsSize = 0;
+        if (copyBase) {
+            int runStart = -1;
+            for (int record = base.recordsStart; record < base.recordsEnd; ) {
+                int next = base.nextRecord(record);
+                if (values.shadows(record)) {
+                    if (runStart >= 0) {
+                        addRun(runStart, record);
+                        runStart = -1;
+                    }
+                } else {
+                    if (runStart < 0) {
+                        runStart = record;
+                    }
+                    putIndex(out, MappedSnapshot.HEADER_SIZE, tableSize, base.hashAt(record),
+                            offset);
+                    offset += next - record;
+                }
+                record = next;
+            }
+            if (runStart >= 0) {
+                addRun(runStart, base.recordsEnd);
+            }
+        }
+        out.putInt(13, offset);
+        out.flip();
+
+        ByteBuffer[] buffers = new ByteBuffer[1 + runsSize / 2];
+        buffers[0] = out;
+        for (int i = 0; i < runsSize; i += 2) {
+            ByteBuffer run = base.buffer.duplicate();
+            run.limit(runs[i + 1]);
+            run.position(runs[i]);
+            buffers[1 + i / 2] = run;
+        }
+        return write(channel, buffers);
+    }
+
+    /**
+     * Checks if values have blobs that have to be stored out of line.
+     */
+    private static boolean hasBlobs(ValueStore values) {
+        for (int i = 0; i < values.size; i++) {
+            if (values.types[i] == ValueStore.TYPE_BYTES) {
+                return true;
+            }
+        }
+        MappedSnapshot base = values.base;
+        if (base == null || !base.blobs) {
+            return false;
+        }
+        for (int record = base.recordsStart; record < base.recordsEnd;
+             record = base.nextRecord(record)) {
+            if (base.typeAt(record) == ValueStore.TYPE_BYTES && !values.shadows(record)) {
+                return true;
+            }
+        }
+        return false;
+    }
+
+    /**
+     * Writes snapshot with data area between hash table and records: blobs are stored there
+     * out of line, with string table each distinct string value or string set member
+     * is stored there once and records refer to it by index.
+     */
+    private long writeDataSnapshot(FileChannel channel, ValueStore values,
+                                   boolean stringTable) throws IOException {
+        MappedSnapshot base = values.base;
+        int count = values.count();
+        int tableSize = MappedSnapshot.tableSize(count);
+        int tableStart = MappedSnapshot.STRING_TABLE_HEADER_SIZE;
+
+        // decoded values of records that are not copied, in order of writing.
+        ArrayList<Object> objects = new ArrayList<>();
+        HashMap<String, Integer> stringIndexes = new HashMap<>();
+        ArrayList<String> strings = new ArrayList<>();
+        int blobsCount = 0;
+        // sizes are upper bounds, values may be written deflated.
+        int blobsSize = 0;
+        int recordsSize = 0;
+        for (int i = 0; i < values.size; i++) {
+            byte type = values.types[i];
+            if (type == ValueStore.TYPE_REMOVED) {
+                continue;
+            }
+            if (type != ValueStore.TYPE_BYTES && !stringTable) {
+                recordsSize += entrySize(values, i);
+                continue;
+            }
+            recordsSize += 2 + values.keys[i].bytes.length + 4 + 1;
+            if (type == ValueStore.TYPE_BYTES) {
+                blobsCount++;
+                blobsSize += ((ByteBuffer) values.getObject(i)).remaining();
+                recordsSize += 8;
+            } else if (isObjectType(type)) {
+                Object value = values.getObject(i);
+                objects.add(value);
+                recordsSize += addStrings(type, value, stringIndexes, strings);
+            } else {
+                recordsSize += primitiveSize(type);
+            }
+        }
+        if (base != null) {
+            for (int record = base.recordsStart; record < base.recordsEnd;
+                 record = base.nextRecord(record)) {
+                if (values.shadows(record)) {
+                    continue;
+                }
+                byte type = base.typeAt(record);
+                int valueOffset = base.valueOffset(record);
+                if (type == ValueStore.TYPE_BYTES) {
+                    blobsCount++;
+                    // stored blob is copied as is.
+                    blobsSize += Math.abs(base.buffer.getInt(valueOffset));
+                    recordsSize += valueOffset - record + 8;
+                } else if (isObjectType(type) && (stringTable || !base.isInline(record))) {
+                    Object value = base.objectAt(record);
+                    objects.add(value);
+                    recordsSize += valueOffset - record + (stringTable ?
+                            addStrings(type, value, stringIndexes, strings) :
+                            objectSize(type, value));
+                } else {
+                    recordsSize += base.nextRecord(record) - record;
+                }
+            }
+        }
+        int stringsSize = strings.size() * 4;
+        for (String str : strings) {
+            stringsSize += 4 + utf8Length(str);
+        }
+        int size = tableStart + tableSize * MappedSnapshot.TABLE_ENTRY_SIZE +
+                stringsSize + blobsSize + recordsSize;
+
+        ByteBuffer out = obtain(size);
+        out.putInt(Segment.FORMAT_MAGIC);
+        out.put(stringTable ? Segment.FORMAT_VERSION_STRING_TABLE : Segment.FORMAT_VERSION_BLOBS);
+        out.putInt(count);
+        out.putInt(tableSize);
+        // end and start of records, known after data area is written.
+        out.putInt(0);
+        out.putInt(0);
+        out.putInt(strings.size());
+        for (int i = 0; i < tableSize; i++) {
+            out.putLong(0);
+        }
+        int stringOffsets = out.position();
+        out.position(stringOffsets + strings.size() * 4);
+        for (int i = 0; i < strings.size(); i++) {
+            out.putInt(stringOffsets + i * 4, out.position());
+            putValueString(out, strings.get(i));
+        }
+
+        // length and offset of blobs in the same order as their records.
+        int[] blobs = new int[blobsCount * 2];
+        int blob = 0;
+        for (int i = 0; i < values.size; i++) {
+            if (values.types[i] == ValueStore.TYPE_BYTES) {
+                blobs[blob + 1] = out.position();
+                blobs[blob] = putBlock(out, (ByteBuffer) values.getObject(i));
+                blob += 2;
+            }
+        }
+        if (base != null) {
+            for (int record = base.recordsStart; record < base.recordsEnd;
+                 record = base.nextRecord(record)) {
+                if (base.typeAt(record) != ValueStore.TYPE_BYTES || values.shadows(record)) {
+                    continue;
+                }
+                int valueOffset = base.valueOffset(record);
+                int length = base.buffer.getInt(valueOffset);
+                int offset = base.buffer.getInt(valueOffset + 4);
+                blobs[blob] = length;
+                blobs[blob + 1] = out.position();
+                putRange(out, base.buffer, offset, offset + Math.abs(length));
+                blob += 2;
+            }
+        }
+        int recordsStart = out.position();
+
+        int object = 0;
+        blob = 0;
+        for (int i = 0; i < values.size; i++) {
+            byte type = values.types[i];
+            if (type == ValueStore.TYPE_REMOVED) {
+                continue;
+            }
+            putIndex(out, tableStart, tableSize, values.hashes[i], out.position());
+            if (type != ValueStore.TYPE_BYTES && !stringTable) {
+                putEntry(out, values, i);
+                continue;
+            }
+            Key key = values.keys[i];
+            out.putShort((short) key.bytes.length);
+            out.put(key.bytes);
+            out.putInt(key.hash);
+            out.put(type);
+            if (type == ValueStore.TYPE_BYTES) {
+                out.putInt(blobs[blob++]);
+                out.putInt(blobs[blob++]);
+            } else if (isObjectType(type)) {
+                putStringIndexes(out, type, objects.get(object++), stringIndexes);
+            } else {
+                putPrimitive(out, type, values.primitives[i]);
+            }
+        }
+        if (base != null) {
+            for (int record = base.recordsStart; record < base.recordsEnd;
+                 record = base.nextRecord(record)) {
+                if (values.shadows(record)) {
+                    continue;
+                }
+                putIndex(out, tableStart, tableSize, base.hashAt(record), out.position());
+                byte type = base.typeAt(record);
+                int valueOffset = base.valueOffset(record);
+                if (type == ValueStore.TYPE_BYTES) {
+                    // name, hash and type are the same in all layouts.
+                    putRange(out, base.buffer, record, valueOffset);
+                    out.putInt(blobs[blob++]);
+                    out.putInt(blobs[blob++]);
+                } else if (isObjectType(type) && (stringTable || !base.isInline(record))) {
+                    putRange(out, base.buffer, record, valueOffset);
+                    Object value = objects.get(object++);
+                    if (stringTable) {
+                        putStringIndexes(out, type, value, stringIndexes);
+                    } else {
+                        putObject(out, type, value);
+                    }
+                } else {
+                    putRange(out, base.buffer, record, base.nextRecord(record));
+                }
+            }
+        }
+        out.putInt(13, out.position());
+        out.putInt(17, recordsStart);
+        out.flip();
+        return write(channel, new ByteBuffer[]{out});
+    }
+
+    /**
+     * Adds strings of the value to string table.
+     *
+     * @return size of string indexes of the value.
+     */
+    @SuppressWarnings("unchecked")
+    private static int addStrings(byte type, Object value, HashMap<String, Integer> indexes,
+                                  ArrayList<String> strings) {
+        if (type == ValueStore.TYPE_STRING) {
+            addString((String) value, indexes, strings);
+            return 4;
+        }
+        Set<String> set = (Set<String>) value;
+        for (String str : set) {
+            addString(str, indexes, strings);
+        }
+        return 4 + set.size() * 4;
+    }
+
+    private static void addString(String str, HashMap<String, Integer> indexes,
+                                  ArrayList<String> strings) {
+        if (!indexes.containsKey(str)) {
+            indexes.put(str, strings.size());
+            strings.add(str);
+        }
+    }
+
+    @SuppressWarnings("unchecked")
+    private static void putStringIndexes(ByteBuffer out, byte type, Object value,
+                                         HashMap<String, Integer> indexes) {
+        if (type == ValueStore.TYPE_STRING) {
+            out.putInt(indexes.get(value));
+            return;
+        }
+        Set<String> set = (Set<String>) value;
+        out.putInt(set.size());
+        for (String str : set) {
+            out.putInt(indexes.get(str));
+        }
+    }
+
+    /**
+     * Appends log record with current values of given keys, keys missing in values
+     * are written as removed.
+     *
+     * @return number of written bytes.
+     */
+    long writeLogRecord(FileChannel channel, ValueStore values,
+                        Collection<String> keys) throws IOException {
+        startWrite();
+        MappedSnapshot base = values.base;
+        if (positions.length < keys.size()) {
+            positions = new int[keys.size()];
+        }
+        int changedCount = 0;
+        int removedCount = 0;
+        // length, changed count, removed count, end marker
+        int size = 4 + 4 + 4 + 4;
+        int i = 0;
+        for (String name : keys) {
+            int index = values.indexOf(name);
+            int slot = index < 0 && base != null ? base.find(name) : -1;
+            if (index >= 0 && values.types[index] != ValueStore.TYPE_REMOVED) {
+                positions[i] = index;
+                size += entrySize(values, index);
+                changedCount++;
+            } else if (slot >= 0) {
+                int record = base.record(slot);
+                positions[i] = -2 - record;
+                size += recordSize(base, record);
+                changedCount++;
+            } else {
+                positions[i] = -1;
+                size += 2 + utf8Length(name) + 4;
+                removedCount++;
+            }
+            i++;
+        }
+
+        ByteBuffer out = obtain(size);
+        // length, known after values are written.
+        out.putInt(0);
+        out.putInt(changedCount);
+        for (i = 0; i < keys.size(); i++) {
+            int position = positions[i];
+            if (position >= 0) {
+                putEntry(out, values, position);
+            } else if (position < -1) {
+                putRecord(out, base, -2 - position);
+            }
+        }
+        out.putInt(removedCount);
+        i = 0;
+        for (String name : keys) {
+            if (positions[i++] == -1) {
+                out.putShort((short) utf8Length(name));
+                putUtf8(out, name);
+                out.putInt(name.hashCode());
+            }
+        }
+        out.putInt(Segment.LOG_RECORD_END);
+        out.putInt(0, out.position() - 8);
+        out.flip();
+        return write(channel, new ByteBuffer[]{out});
+    }
+
+    private ByteBuffer obtain(int size) {
+        ByteBuffer buffer = this.buffer;
+        if (buffer == null || buffer.capacity() < size) {
+            buffer = ByteBuffer.allocateDirect(Math.max(size, MIN_CAPACITY));
+        }
+        buffer.clear();
+        this.buffer = buffer.capacity() <= MAX_RETAINED_CAPACITY ? buffer : null;
+        return buffer;
+    }
+
+    private void addRun(int start, int end) {
+        if (runsSize == runs.length) {
+            int[] runs = new int[runsSize * 2];
+            System.arraycopy(this.runs, 0, runs, 0, runsSize);
+            this.runs = runs;
+        }
+        runs[runsSize++] = start;
+        runs[runsSize++] = end;
+    }
+
+    private static long write(FileChannel channel, ByteBuffer[] buffers) throws IOException {
+        long size = 0;
+        for (ByteBuffer buffer : buffers) {
+            size += buffer.remaining();
+        }
+        long written = 0;
+        while (written < size) {
+            written += channel.write(buffers);
+        }
+        return size;
+    }
+
+    private static void putIndex(ByteBuffer out, int tableStart, int tableSize, int hash,
+                                 int record) {
+        int mask = tableSize - 1;
+        int slot = MappedSnapshot.spread(hash) & mask;
+        while (out.getInt(tableStart + slot * MappedSnapshot.TABLE_ENTRY_SIZE + 4) != 0) {
+            slot = (slot + 1) & mask;
+        }
+        int entry = tableStart + slot * MappedSnapshot.TABLE_ENTRY_SIZE;
+        out.putInt(entry, hash);
+        out.putInt(entry + 4, record);
+    }
+
+    /**
+     * Returns size of base record in format of log records.
+     */
+    private static int recordSize(MappedSnapshot base, int record) {
+        int next = base.nextRecord(record);
+        if (base.isInline(record)) {
+            return next - record;
+        }
+        return base.valueOffset(record) - record +
+                objectSize(base.typeAt(record), base.objectAt(record));
+    }
+
+    /**
+     * Puts base record in format of log records.
+     */
+    private void putRecord(ByteBuffer out, MappedSnapshot base, int record) {
+        int next = base.nextRecord(record);
+        byte type = base.typeAt(record);
+        if (base.isInline(record)) {
+            putRange(out, base.buffer, record, next);
+            return;
+        }
+        int valueOffset = base.valueOffset(record);
+        putRange(out, base.buffer, record, valueOffset);
+        putObject(out, type, base.objectAt(record));
+    }
+
+    private static boolean isObjectType(byte type) {
+        return type == ValueStore.TYPE_STRING || type == ValueStore.TYPE_STRING_SET ||
+                type == ValueStore.TYPE_BYTES;
+    }
+
+    private static int entrySize(ValueStore values, int index) {
+        // name length, name, hash, type
+        int size = 2 + values.keys[index].bytes.length + 4 + 1;
+        byte type = values.types[index];
+        Object value = values.objects[index];
+        if (value instanceof ValueStore.EncodedValue) {
+            return size + ((ValueStore.EncodedValue) value).length;
+        }
+        return size + (isObjectType(type) ? objectSize(type, value) : primitiveSize(type));
+    }
+
+    @SuppressWarnings("unchecked")
+    private static int objectSize(byte type, Object value) {
+        if (type == ValueStore.TYPE_STRING) {
+            return 4 + utf8Length((String) value);
+        }
+        if (type == ValueStore.TYPE_BYTES) {
+            return 4 + ((ByteBuffer) value).remaining();
+        }
+        int size = 4;
+        for (String str : (Set<String>) value) {
+            size += 4 + utf8Length(str);
+        }
+        return size;
+    }
+
+    private static int primitiveSize(byte type) {
+        switch (type) {
+            case ValueStore.TYPE_INT:
+            case ValueStore.TYPE_FLOAT:
+                return 4;
+            case ValueStore.TYPE_BOOLEAN:
+                return 1;
+            default:
+                return 8;
+        }
+    }
+
+    private void putEntry(ByteBuffer out, ValueStore values, int index) {
+        Key key = values.keys[index];
+        out.putShort((short) key.bytes.length);
+        out.put(key.bytes);
+        out.putInt(key.hash);
+        byte type = values.types[index];
+        out.put(type);
+
+        Object value = values.objects[index];
+        if (value instanceof ValueStore.EncodedValue) {
+            // not decoded yet, copy encoded value as is.
+            ValueStore.EncodedValue encoded = (ValueStore.EncodedValue) value;
+            putRange(out, encoded.source, encoded.offset, encoded.offset + encoded.length);
+        } else if (isObjectType(type)) {
+            putObject(out, type, value);
+        } else {
+            putPrimitive(out, type, values.primitives[index]);
+        }
+    }
+
+    @SuppressWarnings("unchecked")
+    private void putObject(ByteBuffer out, byte type, Object value) {
+        if (type == ValueStore.TYPE_STRING) {
+            putValueString(out, (String) value);
+            return;
+        }
+        if (type == ValueStore.TYPE_BYTES) {
+            int lengthOffset = out.position();
+            out.putInt(0);
+            out.putInt(lengthOffset, putBlock(out, (ByteBuffer) value));
+            return;
+        }
+        Set<String> set = (Set<String>) value;
+        out.putInt(set.size());
+        for (String str : set) {
+            putString(out, str);
+        }
+    }
+
+    private static void putPrimitive(ByteBuffer out, byte type, long primitive) {
+        switch (type) {
+            case ValueStore.TYPE_INT:
+            case ValueStore.TYPE_FLOAT:
+                out.putInt((int) primitive);
+                break;
+            case ValueStore.TYPE_BOOLEAN:
+                out.put((byte) (primitive != 0 ? 1 : 0));
+                break;
+            case ValueStore.TYPE_LONG:
+                out.putLong(primitive);
+                break;
+        }
+    }
+
+    private static void putRange(ByteBuffer out, ByteBuffer source, int start, int end) {
+        ByteBuffer in = source.duplicate();
+        in.limit(end);
+        in.position(start);
+        out.put(in);
+    }
+
+    /**
+     * Keeps deflated blocks only of values written again.
+     */
+    private void startWrite() {
+        IdentityHashMap<Object, byte[]> previous = previousDeflated;
+        previousDeflated = deflated;
+        previous.clear();
+        deflated = previous;
+    }
+
+    /**
+     * Puts string value, deflated one if it is long enough and compression saves space.
+     */
+    private void putValueString(ByteBuffer out, String str) {
+        byte[] block = null;
+        if (compressionThreshold > 0 && str.length() >= compressionThreshold / 3 &&
+                utf8Length(str) >= compressionThreshold) {
+            block = deflated(str);
+        }
+        if (block == null) {
+            putString(out, str);
+            return;
+        }
+        out.putInt(-block.length);
+        out.put(block);
+    }
+
+    /**
+     * Puts content of blob, deflated if it is long enough and compression saves space.
+     *
+     * @return raw length or negative size of deflated block.
+     */
+    private int putBlock(ByteBuffer out, ByteBuffer blob) {
+        byte[] block = null;
+        if (compressionThreshold > 0 && blob.remaining() >= compressionThreshold) {
+            block = deflated(blob);
+        }
+        if (block == null) {
+            out.put(blob.duplicate());
+            return blob.remaining();
+        }
+        out.put(block);
+        return -block.length;
+    }
+
+    /**
+     * Returns block of int raw length and zlib stream of string or blob.
+     *
+     * @return null if compression doesn't save space.
+     */
+    @Nullable
+    private byte[] deflated(Object value) {
+        byte[] block = previousDeflated.get(value);
+        if (block == null) {
+            block = deflated.get(value);
+        }
+        if (block == null) {
+            byte[] input;
+            int length;
+            if (value instanceof String) {
+                input = ((String) value).getBytes(StandardCharsets.UTF_8);
+                length = input.length;
+            } else {
+                ByteBuffer blob = (ByteBuffer) value;
+                length = blob.remaining();
+                input = length <= MAX_RETAINED_CAPACITY ? this.input : new byte[length];
+                if (input.length < length) {
+                    input = new byte[length];
+                    this.input = input;
+                }
+                blob.duplicate().get(input, 0, length);
+            }
+            int size = deflate(input, length);
+            if (size < 0) {
+                block = NOT_DEFLATED;
+            } else {
+                block = new byte[4 + size];
+                ByteBuffer.wrap(block).putInt(length).put(output, 0, size);
+            }
+            if (output.length > MAX_RETAINED_CAPACITY) {
+                output = new byte[0];
+            }
+        }
+        deflated.put(value, block);
+        return block != NOT_DEFLATED ? block : null;
+    }
+
+    /**
+     * Deflates input into {@link #output}.
+     *
+     * @return size of deflated data or -1 if it doesn't save space.
+     */
+    private int deflate(byte[] input, int length) {
+        // raw length field of deflated block has to be paid off.
+        int limit = length - 4 - 1;
+        if (limit <= 0) {
+            return -1;
+        }
+        if (deflater == null) {
+            deflater = new Deflater(Deflater.BEST_SPEED);
+        }
+        Deflater deflater = this.deflater;
+        deflater.reset();
+        deflater.setInput(input, 0, length);
+        deflater.finish();
+        if (output.length < limit) {
+            output = new byte[limit];
+        }
+        int size = 0;
+        while (!deflater.finished() && size < limit) {
+            int count = deflater.deflate(output, size, limit - size);
+            if (count == 0) {
+                break;
+            }
+            size += count;
+        }
+        return deflater.finished() ? size : -1;
+    }
+
+    private static void putString(ByteBuffer out, String str) {
+        int lengthOffset = out.position();
+        out.putInt(0);
+        putUtf8(out, str);
+        out.putInt(lengthOffset, out.position() - lengthOffset - 4);
+    }
+
+    /**
+     * Returns length of {@link String#getBytes} UTF-8 representation without encoding.
+     */
+    static int utf8Length(String str) {
+        int length = str.length();
+        int count = length;
+        for (int i = 0; i < length; i++) {
+            char c = str.charAt(i);
+            if (c >= 0x800) {
+                if (Character.isHighSurrogate(c) && i + 1 < length &&
+                        Character.isLowSurrogate(str.charAt(i + 1))) {
+                    // 4 bytes for 2 chars
+                    count += 2;
+                    i++;
+                } else if (!Character.isSurrogate(c)) {
+                    count += 2;
+                }
+            } else if (c >= 0x80) {
+                count++;
+            }
+        }
+        return count;
+    }
+
+    /**
+     * Encodes same bytes as {@link String#getBytes}: unpaired surrogates are encoded as '?'.
+     */
+    static void putUtf8(ByteBuffer out, String str) {
+        int length = str.length();
+        for (int i = 0; i < length; i++) {
+            char c = str.charAt(i);
+            if (c < 0x80) {
+                out.put((byte) c);
+            } else if (c < 0x800) {
+                out.put((byte) (0xC0 | (c >> 6)));
+                out.put((byte) (0x80 | (c & 0x3F)));
+            } else if (Character.isSurrogate(c)) {
+                if (Character.isHighSurrogate(c) && i + 1 < length &&
+                        Character.isLowSurrogate(str.charAt(i + 1))) {
+                    int codePoint = Character.toCodePoint(c, str.charAt(++i));
+                    out.put((byte) (0xF0 | (codePoint >> 18)));
+                    out.put((byte) (0x80 | ((codePoint >> 12) & 0x3F)));
+                    out.put((byte) (0x80 | ((codePoint >> 6) & 0x3F)));
+                    out.put((byte) (0x80 | (codePoint & 0x3F)));
+                } else {
+                    out.put((byte) '?');
+                }
+            } else {
+                out.put((byte) (0xE0 | (c >> 12)));
+                out.put((byte) (0x80 | ((c >> 6) & 0x3F)));
+                out.put((byte) (0x80 | (c & 0x3F)));
+            }
+        }
+    }
+}
@@ -0,0 +1,11 @@
+package com.github.grishberg.binarypreferences;
+
+import java.util.Set;
+
+/**
+ * Receives keys changed by other processes, see
+ * {@link BinaryPreferences.Options#setMultiProcessEnabled(boolean)}.
+ */
+interface ExternalChangesListener {
+    void onExternalChanges(Set<String> keys);
+}
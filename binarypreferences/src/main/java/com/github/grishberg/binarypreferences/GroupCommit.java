@@ -0,0 +1,79 @@
+package com.github.grishberg.binarypreferences;
+
+import java.util.HashSet;
+import java.util.Set;
+
+/**
+ * Joins concurrent {@code commit()} callers into batches: one caller writes changes of
+ * everyone who committed before its write started, the others wait for that write instead
+ * of rewriting the same values again.
+ */
+final class GroupCommit {
+    private final Object lock = new Object();
+    private final ChangesWriter writer;
+
+    private HashSet<String> pendingKeys = new HashSet<>();
+    /**
+     * Generation of the last registered commit.
+     */
+    private long requested;
+    /**
+     * Generation of the last commit that was included in finished write.
+     */
+    private long written;
+    /**
+     * Generation of the last commit that is known to reach storage.
+     */
+    private long durable;
+    private boolean writing;
+
+    GroupCommit(ChangesWriter writer) {
+        this.writer = writer;
+    }
+
+    /**
+     * Waits until changed keys are written by this or concurrent caller.
+     *
+     * @return true if write that included these keys or any later write succeeded.
+     */
+    boolean commit(Set<String> keys) {
+        long generation;
+        long batchGeneration;
+        Set<String> batch;
+        synchronized (lock) {
+            generation = ++requested;
+            pendingKeys.addAll(keys);
+            while (written < generation && writing) {
+                try {
+                    lock.wait();
+                } catch (InterruptedException unused) {
+                }
+            }
+            if (written >= generation) {
+                return durable >= generation;
+            }
+            writing = true;
+            batch = pendingKeys;
+            pendingKeys = new HashSet<>();
+            batchGeneration = requested;
+        }
+        boolean success = false;
+        try {
+            success = writer.write(batch);
+        } finally {
+            synchronized (lock) {
+                written = batchGeneration;
+                if (success) {
+                    durable = batchGeneration;
+                } else {
+                    // next batch writes segments of these keys again, so its success
+                    // covers this batch too.
+                    pendingKeys.addAll(batch);
+                }
+                writing = false;
+                lock.notifyAll();
+            }
+        }
+        return success;
+    }
+}
@@ -0,0 +1,198 @@
+package com.github.grishberg.binarypreferences;
+
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.AtomicLongArray;
+
+import androidx.annotation.NonNull;
+
+/**
+ * Collects {@link PreferencesMetrics} into lock-free histograms with power of two buckets,
+ * recording is a few atomic increments. May be shared by several stores.
+ */
+public final class HistogramMetrics implements PreferencesMetrics {
+    private final Histogram loadNanos = new Histogram();
+    private final Histogram loadBytes = new Histogram();
+    private final Histogram loadWaitNanos = new Histogram();
+    private final Histogram lockWaitNanos = new Histogram();
+    private final Histogram encodeNanos = new Histogram();
+    private final Histogram syncNanos = new Histogram();
+    private final Histogram writeBytes = new Histogram();
+    private final Histogram writeKeys = new Histogram();
+    private final Histogram applyQueueDepth = new Histogram();
+    private final AtomicLong loadedKeys = new AtomicLong();
+    private final AtomicLong coalescedFlushes = new AtomicLong();
+    private final AtomicLong droppedFlushes = new AtomicLong();
+
+    @Override
+    public void onLoaded(long durationNanos, long bytesRead, int keysCount) {
+        loadNanos.record(durationNanos);
+        loadBytes.record(bytesRead);
+        loadedKeys.addAndGet(keysCount);
+    }
+
+    @Override
+    public void onLoadWait(long durationNanos) {
+        loadWaitNanos.record(durationNanos);
+    }
+
+    @Override
+    public void onLockWait(long durationNanos) {
+        lockWaitNanos.record(durationNanos);
+    }
+
+    @Override
+    public void onWrite(long encodeNanos, long syncNanos, long bytesWritten, int keysCount) {
+        this.encodeNanos.record(encodeNanos);
+        this.syncNanos.record(syncNanos);
+        writeBytes.record(bytesWritten);
+        writeKeys.record(keysCount);
+    }
+
+    @Override
+    public void onApplyQueued(int pendingApplies) {
+        applyQueueDepth.record(pendingApplies);
+    }
+
+    @Override
+    public void onFlushCoalesced() {
+        coalescedFlushes.incrementAndGet();
+    }
+
+    @Override
+    public void onFlushDropped() {
+        droppedFlushes.incrementAndGet();
+    }
+
+    public Histogram getLoadNanos() {
+        return loadNanos;
+    }
+
+    public Histogram getLoadBytes() {
+        return loadBytes;
+    }
+
+    public Histogram getLoadWaitNanos() {
+        return loadWaitNanos;
+    }
+
+    public Histogram getLockWaitNanos() {
+        return lockWaitNanos;
+    }
+
+    public Histogram getEncodeNanos() {
+        return encodeNanos;
+    }
+
+    public Histogram getSyncNanos() {
+        return syncNanos;
+    }
+
+    public Histogram getWriteBytes() {
+        return writeBytes;
+    }
+
+    public Histogram getWriteKeys() {
+        return writeKeys;
+    }
+
+    public Histogram getApplyQueueDepth() {
+        return applyQueueDepth;
+    }
+
+    public long getLoadedKeys() {
+        return loadedKeys.get();
+    }
+
+    public long getCoalescedFlushes() {
+        return coalescedFlushes.get();
+    }
+
+    public long getDroppedFlushes() {
+        return droppedFlushes.get();
+    }
+
+    @NonNull
+    @Override
+    public String toString() {
+        return "load=" + loadNanos +
+                "\nloadBytes=" + loadBytes +
+                "\nloadedKeys=" + loadedKeys +
+                "\nloadWait=" + loadWaitNanos +
+                "\nlockWait=" + lockWaitNanos +
+                "\nencode=" + encodeNanos +
+                "\nsync=" + syncNanos +
+                "\nwriteBytes=" + writeBytes +
+                "\nwriteKeys=" + writeKeys +
+                "\napplyQueueDepth=" + applyQueueDepth +
+                "\ncoalescedFlushes=" + coalescedFlushes +
+                "\ndroppedFlushes=" + droppedFlushes;
+    }
+
+    /**
+     * Counts values in buckets {@code [2^(i-1), 2^i)}, bucket 0 holds zero and negative values.
+     */
+    public static final class Histogram {
+        private static final int BUCKETS = 64;
+
+        private final AtomicLongArray buckets = new AtomicLongArray(BUCKETS);
+        private final AtomicLong count = new AtomicLong();
+        private final AtomicLong sum = new AtomicLong();
+
+        void record(long value) {
+            int bucket = value <= 0 ? 0 : BUCKETS - Long.numberOfLeadingZeros(value);
+            buckets.incrementAndGet(Math.min(bucket, BUCKETS - 1));
+            count.incrementAndGet();
+            sum.addAndGet(value);
+        }
+
+        public long getCount() {
+            return count.get();
+        }
+
+        public long getSum() {
+            return sum.get();
+        }
+
+        /**
+         * Returns count of values in each bucket, bucket {@code i} holds values below
+         * {@code 2^i}.
+         */
+        @NonNull
+        public long[] getBuckets() {
+            long[] result = new long[BUCKETS];
+            for (int i = 0; i < BUCKETS; i++) {
+                result[i] = buckets.get(i);
+            }
+            return result;
+        }
+
+        /**
+         * Returns upper bound of bucket containing given percentile, 0 when empty.
+         *
+         * @param percentile from 0 to 100.
+         */
+        public long getPercentile(double percentile) {
+            long[] buckets = getBuckets();
+            long total = 0;
+            for (long bucket : buckets) {
+                total += bucket;
+            }
+            long rank = (long) Math.ceil(total * percentile / 100);
+            long seen = 0;
+            for (int i = 0; i < BUCKETS; i++) {
+                seen += buckets[i];
+                if (seen >= rank && seen > 0) {
+                    return i == 0 ? 0 : (i >= BUCKETS - 1 ? Long.MAX_VALUE : (1L << i) - 1);
+                }
+            }
+            return 0;
+        }
+
+        @NonNull
+        @Override
+        public String toString() {
+            return "count=" + getCount() + " sum=" + getSum() + " p50<=" + getPercentile(50) +
+                    " p90<=" + getPercentile(90) + " p99<=" + getPercentile(99);
+        }
+    }
+}
@@ -0,0 +1,62 @@
+package com.github.grishberg.binarypreferences;
+
+import androidx.annotation.Nullable;
+
+/**
+ * Stable merge sort of int arrays in custom order, indexes are not boxed.
+ */
+final class IntSort {
+    private static final int INSERTION_SORT_LENGTH = 16;
+
+    interface IntComparator {
+        int compare(int a, int b);
+    }
+
+    private IntSort() {
+    }
+
+    static void sort(int[] values, IntComparator comparator) {
+        if (values.length > 1) {
+            // short arrays are sorted by insertion without merge buffer.
+            sort(values, values.length > INSERTION_SORT_LENGTH ? new int[values.length] : null,
+                    0, values.length, comparator);
+        }
+    }
+
+    /**
+     * Sorts {@code values} from {@code from} inclusive to {@code to} exclusive, same range
+     * of {@code buffer} is used for merging, it's null if the range is short.
+     */
+    private static void sort(int[] values, @Nullable int[] buffer, int from, int to,
+                             IntComparator comparator) {
+        if (to - from <= INSERTION_SORT_LENGTH) {
+            for (int i = from + 1; i < to; i++) {
+                int value = values[i];
+                int j = i - 1;
+                while (j >= from && comparator.compare(values[j], value) > 0) {
+                    values[j + 1] = values[j];
+                    j--;
+                }
+                values[j + 1] = value;
+            }
+            return;
+        }
+        int middle = (from + to) >>> 1;
+        sort(values, buffer, from, middle, comparator);
+        sort(values, buffer, middle, to, comparator);
+        if (comparator.compare(values[middle - 1], values[middle]) <= 0) {
+            return;
+        }
+        System.arraycopy(values, from, buffer, from, to - from);
+        int left = from;
+        int right = middle;
+        for (int i = from; i < to; i++) {
+            if (right == to || (left < middle &&
+                    comparator.compare(buffer[left], buffer[right]) <= 0)) {
+                values[i] = buffer[left++];
+            } else {
+                values[i] = buffer[right++];
+            }
+        }
+    }
+}
@@ -0,0 +1,126 @@
+package com.github.grishberg.binarypreferences;
+
+import java.nio.ByteBuffer;
+import java.nio.charset.StandardCharsets;
+import java.util.Arrays;
+
+import androidx.annotation.Nullable;
+
+/**
+ * Preferences key as it is stored in file: UTF-8 bytes and {@link String#hashCode()} of the name.
+ */
+final class Key {
+    final int hash;
+    final byte[] bytes;
+
+    @Nullable
+    private String text;
+
+    public Key(int hash, byte[] asBytes) {
+        this.hash = hash;
+        this.bytes = asBytes;
+    }
+
+    public Key(String key) {
+        hash = key.hashCode();
+        text = key;
+        bytes = key.getBytes(StandardCharsets.UTF_8);
+    }
+
+    String getText() {
+        if (text == null) {
+            text = new String(bytes, StandardCharsets.UTF_8);
+        }
+        return text;
+    }
+
+    /**
+     * Compares key with name without decoding or encoding anything.
+     */
+    boolean matches(String name) {
+        String text = this.text;
+        if (text != null) {
+            return text.equals(name);
+        }
+        return equalsUtf8(name, bytes);
+    }
+
+    /**
+     * Checks that {@code bytes} is UTF-8 representation of {@code str}, same as
+     * {@link String#getBytes} produces: unpaired surrogates are encoded as '?'.
+     */
+    static boolean equalsUtf8(String str, byte[] bytes) {
+        return equalsUtf8(str, bytes, null, 0, bytes.length);
+    }
+
+    /**
+     * Checks that {@code count} bytes of {@code buffer} at {@code offset} are UTF-8
+     * representation of {@code str}.
+     */
+    static boolean equalsUtf8(String str, ByteBuffer buffer, int offset, int count) {
+        return equalsUtf8(str, null, buffer, offset, count);
+    }
+
+    private static boolean equalsUtf8(String str, @Nullable byte[] bytes,
+                                      @Nullable ByteBuffer buffer, int offset, int count) {
+        int length = str.length();
+        if (count < length) {
+            return false;
+        }
+        int pos = 0;
+        for (int i = 0; i < length; i++) {
+            char c = str.charAt(i);
+            if (c < 0x80) {
+                if (pos >= count || byteAt(bytes, buffer, offset + pos++) != c) {
+                    return false;
+                }
+            } else if (c < 0x800) {
+                if (pos + 2 > count ||
+                        byteAt(bytes, buffer, offset + pos++) != (byte) (0xC0 | (c >> 6)) ||
+                        byteAt(bytes, buffer, offset + pos++) != (byte) (0x80 | (c & 0x3F))) {
+                    return false;
+                }
+            } else if (Character.isSurrogate(c)) {
+                if (Character.isHighSurrogate(c) && i + 1 < length &&
+                        Character.isLowSurrogate(str.charAt(i + 1))) {
+                    int codePoint = Character.toCodePoint(c, str.charAt(++i));
+                    if (pos + 4 > count ||
+                            byteAt(bytes, buffer, offset + pos++) != (byte) (0xF0 | (codePoint >> 18)) ||
+                            byteAt(bytes, buffer, offset + pos++) != (byte) (0x80 | ((codePoint >> 12) & 0x3F)) ||
+                            byteAt(bytes, buffer, offset + pos++) != (byte) (0x80 | ((codePoint >> 6) & 0x3F)) ||
+                            byteAt(bytes, buffer, offset + pos++) != (byte) (0x80 | (codePoint & 0x3F))) {
+                        return false;
+                    }
+                } else if (pos >= count || byteAt(bytes, buffer, offset + pos++) != '?') {
+                    return false;
+                }
+            } else {
+                if (pos + 3 > count ||
+                        byteAt(bytes, buffer, offset + pos++) != (byte) (0xE0 | (c >> 12)) ||
+                        byteAt(bytes, buffer, offset + pos++) != (byte) (0x80 | ((c >> 6) & 0x3F)) ||
+                        byteAt(bytes, buffer, offset + pos++) != (byte) (0x80 | (c & 0x3F))) {
+                    return false;
+                }
+            }
+        }
+        return pos == count;
+    }
+
+    private static byte byteAt(@Nullable byte[] bytes, @Nullable ByteBuffer buffer, int index) {
+        return bytes != null ? bytes[index] : buffer.get(index);
+    }
+
+    @Override
+    public int hashCode() {
+        return hash;
+    }
+
+    @Override
+    public boolean equals(@Nullable Object obj) {
+        if (obj instanceof Key) {
+            Key another = (Key) obj;
+            return Arrays.equals(another.bytes, bytes);
+        }
+        return false;
+    }
+}
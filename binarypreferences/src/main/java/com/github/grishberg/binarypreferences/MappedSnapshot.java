@@ -0,0 +1,416 @@
+package com.github.grishberg.binarypreferences;
+
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.charset.StandardCharsets;
+import java.util.Arrays;
+
+import androidx.annotation.Nullable;
+
+/**
+ * Read-only view of hash indexed snapshot in mapped file.
+ * Nothing is parsed on open: lookup probes hash table in file header and reads
+ * only the matching record, string values are decoded on first access.
+ * <p>
+ * Layout:
+ * <pre>
+ * int magic, byte version, int count, int table size, int end of records
+ * table size * (int key hash, int record offset), record offset 0 is empty slot
+ * count * record: short name length, name bytes, int hash, byte type, value
+ * </pre>
+ * With string table values of strings and string set members are indexes of distinct
+ * strings stored once, each string is decoded once and shared by all values:
+ * <pre>
+ * int magic, byte version, int count, int table size, int end of records,
+ * int start of records, int strings count
+ * table size * (int key hash, int record offset)
+ * strings count * int string offset, strings count * (int length, UTF-8 bytes)
+ * count * record: short name length, name bytes, int hash, byte type, value
+ * </pre>
+ * Blob values are stored out of line after strings so scan over records doesn't touch them,
+ * record keeps only int length and int offset of blob. Snapshot with blobs has the same
+ * header and layout, strings count is 0 when strings are stored in records.
+ * <p>
+ * Negative length of string or blob is size of deflated value: int raw length followed by
+ * zlib stream, it is inflated on first access.
+ */
+final class MappedSnapshot {
+    static final int HEADER_SIZE = 4 + 1 + 4 + 4 + 4;
+    static final int STRING_TABLE_HEADER_SIZE = HEADER_SIZE + 4 + 4;
+    static final int TABLE_ENTRY_SIZE = 8;
+
+    final ByteBuffer buffer;
+    final int count;
+    final int recordsStart;
+    final int recordsEnd;
+    /**
+     * True if string values are indexes in string table.
+     */
+    final boolean stringTable;
+    /**
+     * True if blob values are stored out of line.
+     */
+    final boolean blobs;
+    private final int tableStart;
+    private final int mask;
+    private final int stringsCount;
+    private final int stringOffsets;
+
+    /**
+     * Decoded strings and string sets by table slot, created on first decode.
+     */
+    @Nullable
+    private volatile Object[] decoded;
+    /**
+     * Decoded strings of string table by index, created on first decode.
+     */
+    @Nullable
+    private volatile String[] strings;
+    /**
+     * Record offsets sorted by name bytes, created on first prefix scan.
+     */
+    @Nullable
+    private volatile int[] sortedRecords;
+
+    MappedSnapshot(ByteBuffer buffer, byte version) throws IOException {
+        this.buffer = buffer;
+        stringTable = version == Segment.FORMAT_VERSION_STRING_TABLE;
+        blobs = version != Segment.FORMAT_VERSION;
+        count = buffer.getInt(5);
+        int tableSize = buffer.getInt(9);
+        recordsEnd = buffer.getInt(13);
+        tableStart = blobs ? STRING_TABLE_HEADER_SIZE : HEADER_SIZE;
+        int tableEnd = tableStart + tableSize * TABLE_ENTRY_SIZE;
+        if (blobs) {
+            recordsStart = buffer.getInt(17);
+            stringsCount = buffer.getInt(21);
+            stringOffsets = tableEnd;
+        } else {
+            recordsStart = tableEnd;
+            stringsCount = 0;
+            stringOffsets = tableEnd;
+        }
+        if (Integer.bitCount(tableSize) != 1 || recordsStart < tableEnd ||
+                stringsCount < 0 || stringOffsets + stringsCount * 4L > recordsStart ||
+                recordsEnd < recordsStart || recordsEnd > buffer.limit()) {
+            throw new IOException("Corrupted header");
+        }
+        mask = tableSize - 1;
+    }
+
+    static int tableSize(int count) {
+        int capacity = 2;
+        while (capacity < count * 2) {
+            capacity <<= 1;
+        }
+        return capacity;
+    }
+
+    static int spread(int hash) {
+        return hash ^ (hash >>> 16);
+    }
+
+    /**
+     * @return table slot of the key or -1.
+     */
+    int find(String name) {
+        int hash = name.hashCode();
+        for (int slot = spread(hash) & mask; ; slot = (slot + 1) & mask) {
+            int entry = tableStart + slot * TABLE_ENTRY_SIZE;
+            int record = buffer.getInt(entry + 4);
+            if (record == 0) {
+                return -1;
+            }
+            if (buffer.getInt(entry) == hash &&
+                    Key.equalsUtf8(name, buffer, record + 2, buffer.getShort(record))) {
+                return slot;
+            }
+        }
+    }
+
+    /**
+     * @return table slot of the key or -1.
+     */
+    int find(Key key) {
+        for (int slot = spread(key.hash) & mask; ; slot = (slot + 1) & mask) {
+            int entry = tableStart + slot * TABLE_ENTRY_SIZE;
+            int record = buffer.getInt(entry + 4);
+            if (record == 0) {
+                return -1;
+            }
+            if (buffer.getInt(entry) == key.hash && keyEquals(record, key)) {
+                return slot;
+            }
+        }
+    }
+
+    boolean keyEquals(int record, Key key) {
+        int length = buffer.getShort(record);
+        if (length != key.bytes.length) {
+            return false;
+        }
+        for (int i = 0; i < length; i++) {
+            if (buffer.get(record + 2 + i) != key.bytes[i]) {
+                return false;
+            }
+        }
+        return true;
+    }
+
+    int record(int slot) {
+        return buffer.getInt(tableStart + slot * TABLE_ENTRY_SIZE + 4);
+    }
+
+    byte type(int slot) {
+        return typeAt(record(slot));
+    }
+
+    /**
+     * Returns int, long, float or boolean value packed same as in {@link ValueStore#primitives}.
+     */
+    long primitive(int slot) {
+        int record = record(slot);
+        return readPrimitive(buffer, typeAt(record), valueOffset(record));
+    }
+
+    Object object(int slot) {
+        Object[] decoded = this.decoded;
+        if (decoded == null) {
+            synchronized (this) {
+                decoded = this.decoded;
+                if (decoded == null) {
+                    decoded = new Object[mask + 1];
+                    this.decoded = decoded;
+                }
+            }
+        }
+        Object value = decoded[slot];
+        if (value == null) {
+            int record = record(slot);
+            value = objectAt(record);
+            // racy but safe for strings and string sets with their final fields, blob view
+            // is a ByteBuffer that could be seen partially initialized, so it isn't cached.
+            if (typeAt(record) != ValueStore.TYPE_BYTES) {
+                decoded[slot] = value;
+            }
+        }
+        return value;
+    }
+
+    /**
+     * Returns record offsets in unsigned order of UTF-8 name bytes.
+     */
+    int[] sortedRecords() {
+        int[] sorted = sortedRecords;
+        if (sorted == null) {
+            sorted = new int[count];
+            int i = 0;
+            for (int record = recordsStart; record < recordsEnd; record = nextRecord(record)) {
+                sorted[i++] = record;
+            }
+            IntSort.sort(sorted, this::compareNames);
+            // same index is built by each thread, volatile field publishes array content.
+            sortedRecords = sorted;
+        }
+        return sorted;
+    }
+
+    /**
+     * Returns index of the first sorted record with name not less than prefix.
+     */
+    int lowerBound(int[] sorted, byte[] prefix) {
+        int low = 0;
+        int high = sorted.length;
+        while (low < high) {
+            int middle = (low + high) >>> 1;
+            if (compareName(sorted[middle], prefix) < 0) {
+                low = middle + 1;
+            } else {
+                high = middle;
+            }
+        }
+        return low;
+    }
+
+    boolean nameStartsWith(int record, byte[] prefix) {
+        if (buffer.getShort(record) < prefix.length) {
+            return false;
+        }
+        for (int i = 0; i < prefix.length; i++) {
+            if (buffer.get(record + 2 + i) != prefix[i]) {
+                return false;
+            }
+        }
+        return true;
+    }
+
+    private int compareNames(int a, int b) {
+        int lengthA = buffer.getShort(a);
+        int lengthB = buffer.getShort(b);
+        int length = Math.min(lengthA, lengthB);
+        for (int i = 0; i < length; i++) {
+            int diff = (buffer.get(a + 2 + i) & 0xFF) - (buffer.get(b + 2 + i) & 0xFF);
+            if (diff != 0) {
+                return diff;
+            }
+        }
+        return lengthA - lengthB;
+    }
+
+    private int compareName(int record, byte[] name) {
+        int length = buffer.getShort(record);
+        int common = Math.min(length, name.length);
+        for (int i = 0; i < common; i++) {
+            int diff = (buffer.get(record + 2 + i) & 0xFF) - (name[i] & 0xFF);
+            if (diff != 0) {
+                return diff;
+            }
+        }
+        return length - name.length;
+    }
+
+    /**
+     * Decodes string or string set value of the record, blob is returned as read-only view
+     * of mapped file.
+     */
+    Object objectAt(int record) {
+        byte type = typeAt(record);
+        int offset = valueOffset(record);
+        if (blobs && type == ValueStore.TYPE_BYTES) {
+            int length = buffer.getInt(offset);
+            int blob = buffer.getInt(offset + 4);
+            int size = Math.abs(length);
+            if (size < 0 || blob < stringOffsets || blob > recordsStart - size) {
+                throw new IllegalStateException("Wrong blob offset " + blob);
+            }
+            return ValueStore.EncodedValue.bytes(buffer, blob, length);
+        }
+        if (!stringTable) {
+            return ValueStore.EncodedValue.decode(buffer, offset, type);
+        }
+        if (type == ValueStore.TYPE_STRING) {
+            return stringAt(buffer.getInt(offset));
+        }
+        String[] members = new String[buffer.getInt(offset)];
+        for (int i = 0; i < members.length; i++) {
+            members[i] = stringAt(buffer.getInt(offset + 4 + i * 4));
+        }
+        return CompactStringSet.copyOf(Arrays.asList(members));
+    }
+
+    private String stringAt(int index) {
+        if (index < 0 || index >= stringsCount) {
+            throw new IllegalStateException("Wrong string index " + index);
+        }
+        String[] strings = this.strings;
+        if (strings == null) {
+            synchronized (this) {
+                strings = this.strings;
+                if (strings == null) {
+                    strings = new String[stringsCount];
+                    this.strings = strings;
+                }
+            }
+        }
+        String value = strings[index];
+        if (value == null) {
+            int offset = buffer.getInt(stringOffsets + index * 4);
+            value = ValueStore.EncodedValue.string(buffer, offset + 4, buffer.getInt(offset));
+            // racy but safe: strings are immutable.
+            strings[index] = value;
+        }
+        return value;
+    }
+
+    String nameAt(int record) {
+        byte[] bytes = new byte[buffer.getShort(record)];
+        ByteBuffer in = buffer.duplicate();
+        in.position(record + 2);
+        in.get(bytes);
+        return new String(bytes, StandardCharsets.UTF_8);
+    }
+
+    int hashAt(int record) {
+        return buffer.getInt(record + 2 + buffer.getShort(record));
+    }
+
+    byte typeAt(int record) {
+        return buffer.get(record + 2 + buffer.getShort(record) + 4);
+    }
+
+    int valueOffset(int record) {
+        return record + 2 + buffer.getShort(record) + 4 + 1;
+    }
+
+    /**
+     * Returns true if value of the record is encoded same as in log records.
+     */
+    boolean isInline(int record) {
+        byte type = typeAt(record);
+        if (type == ValueStore.TYPE_BYTES) {
+            return !blobs;
+        }
+        return !stringTable || (type != ValueStore.TYPE_STRING &&
+                type != ValueStore.TYPE_STRING_SET);
+    }
+
+    /**
+     * Returns offset of the record that follows given one.
+     */
+    int nextRecord(int record) {
+        byte type = typeAt(record);
+        int offset = valueOffset(record);
+        if (blobs && type == ValueStore.TYPE_BYTES) {
+            return offset + 8;
+        }
+        if (stringTable && type == ValueStore.TYPE_STRING) {
+            return offset + 4;
+        }
+        if (stringTable && type == ValueStore.TYPE_STRING_SET) {
+            return offset + 4 + buffer.getInt(offset) * 4;
+        }
+        return valueEnd(buffer, type, offset);
+    }
+
+    static long readPrimitive(ByteBuffer buffer, byte type, int offset) {
+        switch (type) {
+            case ValueStore.TYPE_INT:
+            case ValueStore.TYPE_FLOAT:
+                return buffer.getInt(offset);
+            case ValueStore.TYPE_BOOLEAN:
+                return buffer.get(offset);
+            case ValueStore.TYPE_LONG:
+                return buffer.getLong(offset);
+            default:
+                return 0;
+        }
+    }
+
+    /**
+     * Returns offset after encoded value.
+     */
+    static int valueEnd(ByteBuffer buffer, byte type, int offset) {
+        switch (type) {
+            case ValueStore.TYPE_STRING:
+            case ValueStore.TYPE_BYTES:
+                // negative length is size of deflated value.
+                return offset + 4 + Math.abs(buffer.getInt(offset));
+            case ValueStore.TYPE_STRING_SET:
+                int setLength = buffer.getInt(offset);
+                offset += 4;
+                for (int i = 0; i < setLength; i++) {
+                    offset += 4 + buffer.getInt(offset);
+                }
+                return offset;
+            case ValueStore.TYPE_INT:
+            case ValueStore.TYPE_FLOAT:
+                return offset + 4;
+            case ValueStore.TYPE_BOOLEAN:
+                return offset + 1;
+            case ValueStore.TYPE_LONG:
+                return offset + 8;
+            default:
+                throw new IllegalStateException("Unknown type " + type);
+        }
+    }
+}
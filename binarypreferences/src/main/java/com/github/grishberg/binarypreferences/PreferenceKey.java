@@ -0,0 +1,102 @@
+package com.github.grishberg.binarypreferences;
+
+import java.util.Set;
+
+import androidx.annotation.NonNull;
+import androidx.annotation.Nullable;
+
+/**
+ * Typed handle of preference declared once and reused for every access:
+ * type is checked at compile time and the place of the key in loaded values is cached,
+ * so repeated reads skip hashing and lookup while the key set doesn't change.
+ * Only reads use the cached place, puts of the handle are looked up by name
+ * same as puts of string keys.
+ *
+ * <pre>
+ * static final PreferenceKey&lt;Integer&gt; LAUNCH_COUNT = PreferenceKey.ofInt("launch_count", 0);
+ * int count = preferences.getInt(LAUNCH_COUNT);
+ * preferences.edit().put(LAUNCH_COUNT, count + 1).apply();
+ * </pre>
+ */
+public final class PreferenceKey<T> {
+    final String name;
+    final byte type;
+    @Nullable
+    final T defValue;
+    /**
+     * Default value of primitive type packed same as in {@link ValueStore#primitives}.
+     */
+    final long defPrimitive;
+
+    /**
+     * Position of the key in last used values, see {@link ValueStore#find(PreferenceKey)}.
+     */
+    @Nullable
+    volatile Resolution resolution;
+
+    private PreferenceKey(String name, byte type, @Nullable T defValue, long defPrimitive) {
+        this.name = name;
+        this.type = type;
+        this.defValue = defValue;
+        this.defPrimitive = defPrimitive;
+    }
+
+    @NonNull
+    public static PreferenceKey<Integer> ofInt(@NonNull String name, int defValue) {
+        return new PreferenceKey<>(name, ValueStore.TYPE_INT, defValue, defValue);
+    }
+
+    @NonNull
+    public static PreferenceKey<Long> ofLong(@NonNull String name, long defValue) {
+        return new PreferenceKey<>(name, ValueStore.TYPE_LONG, defValue, defValue);
+    }
+
+    @NonNull
+    public static PreferenceKey<Float> ofFloat(@NonNull String name, float defValue) {
+        return new PreferenceKey<>(name, ValueStore.TYPE_FLOAT, defValue,
+                Float.floatToRawIntBits(defValue));
+    }
+
+    @NonNull
+    public static PreferenceKey<Boolean> ofBoolean(@NonNull String name, boolean defValue) {
+        return new PreferenceKey<>(name, ValueStore.TYPE_BOOLEAN, defValue, defValue ? 1 : 0);
+    }
+
+    @NonNull
+    public static PreferenceKey<String> ofString(@NonNull String name,
+                                                 @Nullable String defValue) {
+        return new PreferenceKey<>(name, ValueStore.TYPE_STRING, defValue, 0);
+    }
+
+    @NonNull
+    public static PreferenceKey<Set<String>> ofStringSet(@NonNull String name,
+                                                         @Nullable Set<String> defValue) {
+        return new PreferenceKey<>(name, ValueStore.TYPE_STRING_SET, defValue, 0);
+    }
+
+    @NonNull
+    public String getName() {
+        return name;
+    }
+
+    @Nullable
+    public T getDefault() {
+        return defValue;
+    }
+
+    /**
+     * Position of the key is valid while values share keys array and mapped snapshot.
+     */
+    static final class Resolution {
+        final Key[] keys;
+        @Nullable
+        final MappedSnapshot base;
+        final int position;
+
+        Resolution(Key[] keys, @Nullable MappedSnapshot base, int position) {
+            this.keys = keys;
+            this.base = base;
+            this.position = position;
+        }
+    }
+}
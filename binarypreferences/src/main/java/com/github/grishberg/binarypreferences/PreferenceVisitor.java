@@ -0,0 +1,14 @@
+package com.github.grishberg.binarypreferences;
+
+import androidx.annotation.NonNull;
+
+/**
+ * Receives entries of {@link BinaryPreferences#forEach}.
+ */
+public interface PreferenceVisitor {
+    /**
+     * @param value boxed int, long, float or boolean, string, string set or read-only
+     *              {@link java.nio.ByteBuffer} of blob.
+     */
+    void visit(@NonNull String key, @NonNull Object value);
+}
@@ -0,0 +1,46 @@
+package com.github.grishberg.binarypreferences;
+
+/**
+ * Receives timings and counters of {@link BinaryPreferences}, set with
+ * {@link BinaryPreferences.Options#setMetrics}. Methods are called on the thread doing
+ * the work and should be cheap. Nothing is measured when metrics are not set.
+ */
+public interface PreferencesMetrics {
+    /**
+     * Called after all files of the store are read.
+     */
+    void onLoaded(long durationNanos, long bytesRead, int keysCount);
+
+    /**
+     * Called when getter or editor was blocked until loading finished.
+     */
+    void onLoadWait(long durationNanos);
+
+    /**
+     * Called when commit or apply waited for the store lock.
+     */
+    void onLockWait(long durationNanos);
+
+    /**
+     * Called after file is written and synced.
+     *
+     * @param keysCount number of written keys, all keys for full snapshot.
+     */
+    void onWrite(long encodeNanos, long syncNanos, long bytesWritten, int keysCount);
+
+    /**
+     * Called on each apply with number of applies waiting for the next write,
+     * including this one.
+     */
+    void onApplyQueued(int pendingApplies);
+
+    /**
+     * Called when apply is merged into already scheduled write.
+     */
+    void onFlushCoalesced();
+
+    /**
+     * Called when scheduled write is skipped because file already has its changes.
+     */
+    void onFlushDropped();
+}
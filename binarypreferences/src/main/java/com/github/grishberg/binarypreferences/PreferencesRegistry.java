@@ -0,0 +1,243 @@
+package com.github.grishberg.binarypreferences;
+
+import android.content.Context;
+
+import java.io.File;
+import java.util.HashMap;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.Map;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.Executor;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.FutureTask;
+
+import androidx.annotation.NonNull;
+import androidx.annotation.Nullable;
+
+/**
+ * Shares one {@link BinaryPreferences} instance per file between all users in the process,
+ * so the file is parsed once and all writes go through the same store.
+ * Instances are reference counted: stores released by all users stay cached until their
+ * estimated size exceeds memory budget, then least recently used ones are closed.
+ * Closed store is opened again on next {@link #acquire}, which is cheap for indexed files
+ * because records are read lazily from the mapping.
+ */
+public final class PreferencesRegistry {
+    private static final long DEFAULT_MEMORY_BUDGET = 1024 * 1024;
+
+    @Nullable
+    private static PreferencesRegistry instance;
+    /**
+     * Closes evicted stores of all registries.
+     */
+    @Nullable
+    private static ExecutorService closeExecutor;
+
+    private final long memoryBudget;
+    /**
+     * Stores by absolute path of the file, guarded by {@code this}.
+     */
+    private final HashMap<String, Entry> entries = new HashMap<>();
+    /**
+     * Close tasks of evicted stores that are not finished yet, guarded by {@code this}.
+     */
+    private final HashMap<String, Future<?>> closing = new HashMap<>();
+    /**
+     * Released entries in access order, guarded by {@code this}.
+     */
+    private final LinkedHashMap<String, Entry> idle = new LinkedHashMap<>(16, 0.75f, true);
+
+    /**
+     * @param memoryBudget bytes that may be held by stores without users.
+     */
+    public PreferencesRegistry(long memoryBudget) {
+        this.memoryBudget = memoryBudget;
+    }
+
+    /**
+     * Returns process-wide registry with 1 MB budget for idle stores.
+     */
+    @NonNull
+    public static synchronized PreferencesRegistry getInstance() {
+        if (instance == null) {
+            instance = new PreferencesRegistry(DEFAULT_MEMORY_BUDGET);
+        }
+        return instance;
+    }
+
+    @NonNull
+    public BinaryPreferences acquire(@NonNull Context context, @NonNull String preferencesName,
+                                     @NonNull BinaryPreferences.Options options) {
+        return acquire(new File(context.getApplicationInfo().dataDir, preferencesName), options);
+    }
+
+    /**
+     * Returns shared store of the file, it must be passed to {@link #release} when not
+     * needed anymore. Options are used only when store is opened, so all users of the same
+     * file should pass the same options. Store is opened by the first caller outside of the
+     * registry lock, concurrent callers for the same file wait for it.
+     */
+    @NonNull
+    public BinaryPreferences acquire(@NonNull final File preferencesFile,
+                                     @NonNull final BinaryPreferences.Options options) {
+        String path = preferencesFile.getAbsolutePath();
+        Entry entry;
+        boolean opener = false;
+        synchronized (this) {
+            entry = entries.get(path);
+            if (entry == null) {
+                // previous store of the file may still be closing.
+                final Future<?> closing = this.closing.get(path);
+                entry = new Entry(new FutureTask<>(() -> {
+                    if (closing != null) {
+                        await(closing);
+                    }
+                    BinaryPreferences preferences =
+                            new BinaryPreferences(preferencesFile, options);
+                    preferences.setWritesFinishedListener(this::onWritesFinished);
+                    return preferences;
+                }));
+                entries.put(path, entry);
+                opener = true;
+            } else if (entry.references == 0) {
+                idle.remove(path);
+            }
+            entry.references++;
+        }
+        if (opener) {
+            entry.open.run();
+        }
+        try {
+            return await(entry.open);
+        } catch (RuntimeException e) {
+            synchronized (this) {
+                entry.references--;
+                if (entries.get(path) == entry) {
+                    entries.remove(path);
+                }
+            }
+            throw e;
+        }
+    }
+
+    public synchronized void release(@NonNull BinaryPreferences preferences) {
+        String path = preferences.getFile().getAbsolutePath();
+        Entry entry = entries.get(path);
+        if (entry == null || !entry.open.isDone() || entry.preferences() != preferences ||
+                entry.references == 0) {
+            throw new IllegalStateException("Store is not acquired: " + path);
+        }
+        entry.references--;
+        if (entry.references == 0) {
+            idle.put(path, entry);
+            trim();
+        }
+    }
+
+    /**
+     * Trims stores that were skipped by {@link #trim()} because of pending writes.
+     */
+    private synchronized void onWritesFinished() {
+        if (!idle.isEmpty()) {
+            trim();
+        }
+    }
+
+    /**
+     * Closes least recently used idle stores until the rest fit into memory budget.
+     * Stores with unwritten changes or running compaction are kept, so reopening never
+     * reads stale file, they are trimmed again when their writes are finished.
+     * Stores are closed on background thread, reopening waits for it.
+     */
+    private void trim() {
+        long size = 0;
+        for (Entry entry : idle.values()) {
+            size += entry.preferences().estimatedSize();
+        }
+        Iterator<Map.Entry<String, Entry>> iterator = idle.entrySet().iterator();
+        while (size > memoryBudget && iterator.hasNext()) {
+            Map.Entry<String, Entry> idleEntry = iterator.next();
+            final BinaryPreferences preferences = idleEntry.getValue().preferences();
+            if (preferences.hasPendingWrites()) {
+                continue;
+            }
+            size -= preferences.estimatedSize();
+            iterator.remove();
+            final String path = idleEntry.getKey();
+            entries.remove(path);
+            final FutureTask<Void> close = new FutureTask<>(preferences::close, null);
+            closing.put(path, close);
+            closeExecutor().execute(() -> {
+                close.run();
+                synchronized (this) {
+                    if (closing.get(path) == close) {
+                        closing.remove(path);
+                    }
+                }
+            });
+        }
+    }
+
+    private static synchronized Executor closeExecutor() {
+        if (closeExecutor == null) {
+            closeExecutor = Executors.newSingleThreadExecutor(runnable -> {
+                Thread thread = new Thread(runnable, "PreferencesRegistry-close");
+                // closed stores have no pending writes.
+                thread.setDaemon(true);
+                return thread;
+            });
+        }
+        return closeExecutor;
+    }
+
+    /**
+     * Waits for the task ignoring interrupts, its failure is rethrown.
+     */
+    private static <T> T await(Future<T> future) {
+        boolean interrupted = false;
+        try {
+            while (true) {
+                try {
+                    return future.get();
+                } catch (InterruptedException e) {
+                    interrupted = true;
+                } catch (ExecutionException e) {
+                    Throwable cause = e.getCause();
+                    if (cause instanceof RuntimeException) {
+                        throw (RuntimeException) cause;
+                    }
+                    if (cause instanceof Error) {
+                        throw (Error) cause;
+                    }
+                    throw new IllegalStateException(cause);
+                }
+            }
+        } finally {
+            if (interrupted) {
+                Thread.currentThread().interrupt();
+            }
+        }
+    }
+
+    private static final class Entry {
+        /**
+         * Opens the store, run by first caller of {@link #acquire}.
+         */
+        final FutureTask<BinaryPreferences> open;
+        int references;
+
+        Entry(FutureTask<BinaryPreferences> open) {
+            this.open = open;
+        }
+
+        /**
+         * Returns opened store, called only after {@link #acquire} returned it.
+         */
+        BinaryPreferences preferences() {
+            return await(open);
+        }
+    }
+}
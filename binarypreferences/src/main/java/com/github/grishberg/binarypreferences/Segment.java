@@ -0,0 +1,999 @@
+package com.github.grishberg.binarypreferences;
+
+import android.util.Log;
+
+import java.io.BufferedInputStream;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.ObjectInputStream;
+import java.io.RandomAccessFile;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.channels.FileLock;
+import java.nio.channels.OverlappingFileLockException;
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collection;
+import java.util.Collections;
+import java.util.HashSet;
+import java.util.Set;
+
+import androidx.annotation.Nullable;
+
+/**
+ * One preferences file: values of keys stored in it and state of the file.
+ * Store without segments has single segment backed by preferences file itself.
+ * <p>
+ * In multi-process mode writes of all processes are serialized by lock of {@code <file>.lock},
+ * its header holds generation that is incremented by each write and id of data file that is
+ * incremented when the file is replaced. Readers compare generation with the one they have read
+ * and read only log records appended since, or diff keys of replaced file.
+ */
+final class Segment {
+    private static final String TAG = BinaryPreferences.class.getSimpleName();
+
+    /**
+     * Files starting with this magic are stored in raw format and can be memory-mapped,
+     * everything else is treated as legacy {@link ObjectInputStream} format.
+     */
+    static final int FORMAT_MAGIC = 0x42505246;
+    /**
+     * Records are preceded by hash table of record offsets, see {@link MappedSnapshot}.
+     */
+    static final byte FORMAT_VERSION = 2;
+    /**
+     * Indexed format with string values in string table.
+     */
+    static final byte FORMAT_VERSION_STRING_TABLE = 3;
+    /**
+     * Indexed format with blobs out of line and string values in records.
+     */
+    static final byte FORMAT_VERSION_BLOBS = 4;
+    /**
+     * Flat list of records that has to be scanned on load, still readable.
+     */
+    private static final byte FORMAT_VERSION_FLAT = 1;
+    private static final int FLAT_HEADER_SIZE = 4 + 1 + 4;
+    /**
+     * Written after each appended log record, record without it was interrupted and is ignored.
+     */
+    static final int LOG_RECORD_END = 0x4C4F4745;
+
+    static final int LOCK_GENERATION_OFFSET = 0;
+    static final int LOCK_FILE_ID_OFFSET = 8;
+    /**
+     * Id of data file that current one is compaction of, or -1 if it's not.
+     */
+    private static final int LOCK_COMPACTED_OFFSET = 16;
+    private static final int LOCK_HEADER_SIZE = 24;
+
+    final File file;
+    private final BinaryPreferences.Options options;
+    private final ExecutorProvider compactionExecutor;
+    @Nullable
+    private final PreferencesMetrics metrics;
+    /**
+     * Lock of store edits, changes of other processes are published under it.
+     */
+    private final Object editLock;
+    @Nullable
+    private final ExternalChangesListener externalChangesListener;
+    private final boolean deltaLog;
+
+    /**
+     * Immutable snapshot of values, writers publish modified copy so readers don't need the lock.
+     */
+    volatile ValueStore values = ValueStore.EMPTY;
+    /**
+     * Size of the file when it was loaded.
+     */
+    long loadedBytes;
+
+    private final Object dirtyLock = new Object();
+    /**
+     * Keys changed since last write, guarded by {@link #dirtyLock}.
+     */
+    private HashSet<String> dirtyKeys = new HashSet<>();
+    /**
+     * Incremented on each change of {@link #values}, guarded by {@link #dirtyLock}.
+     */
+    private long generation;
+    /**
+     * Generation of values that reached the file, guarded by {@link #fileLock}.
+     */
+    private long writtenGeneration;
+
+    private final Object fileLock = new Object();
+    /**
+     * Guarded by {@link #fileLock}.
+     */
+    private final Encoder encoder;
+    /**
+     * Size of snapshot part of the file, guarded by {@link #fileLock}.
+     */
+    private long snapshotSize = 0;
+    /**
+     * Size of log records appended after snapshot, guarded by {@link #fileLock}.
+     * Negative when file can't be appended and should be rewritten.
+     */
+    private long logSize = -1;
+    /**
+     * True from scheduling compaction until it is finished, written under {@link #fileLock}.
+     */
+    private volatile boolean compactionScheduled = false;
+    /**
+     * Set by {@link #close()}, writes fail after it. Guarded by {@link #fileLock}.
+     */
+    private boolean closed;
+
+    /**
+     * Mapped header of lock file shared with other processes, null unless multi-process mode
+     * is enabled. See {@link #LOCK_GENERATION_OFFSET} and following offsets.
+     */
+    @Nullable
+    private ByteBuffer lockHeader;
+    @Nullable
+    private FileChannel lockChannel;
+    /**
+     * Generation of the file that {@link #values} are read from.
+     */
+    private volatile long knownGeneration;
+    /**
+     * Id of the file that {@link #values} are read from, guarded by {@link #fileLock}.
+     */
+    private long knownFileId;
+    /**
+     * The file that {@link #values} are read from, it stays open in multi-process mode
+     * to read records appended to it before it was replaced. Guarded by {@link #fileLock}.
+     */
+    @Nullable
+    private FileChannel dataChannel;
+    /**
+     * End of records read from {@link #dataChannel}, guarded by {@link #fileLock}.
+     */
+    private long readPosition;
+    /**
+     * Exclusive lock taken by write, compaction started by the write reuses it.
+     * Guarded by {@link #fileLock}.
+     */
+    @Nullable
+    private FileLock writeLock;
+
+    Segment(File file, BinaryPreferences.Options options, ExecutorProvider compactionExecutor,
+            Object editLock, @Nullable ExternalChangesListener externalChangesListener) {
+        this.file = file;
+        this.options = options;
+        this.compactionExecutor = compactionExecutor;
+        this.metrics = options.metrics;
+        this.editLock = editLock;
+        this.externalChangesListener = externalChangesListener;
+        // other processes read only appended records of the file they have read.
+        deltaLog = options.deltaLog || options.multiProcess;
+        encoder = new Encoder(options.compressionThreshold);
+    }
+
+    /**
+     * Reads file if it exists.
+     */
+    void load() throws IOException {
+        if (!options.multiProcess) {
+            loadFile();
+            return;
+        }
+        synchronized (fileLock) {
+            RandomAccessFile lockFile = new RandomAccessFile(file.getPath() + ".lock", "rw");
+            if (lockFile.length() < LOCK_HEADER_SIZE) {
+                lockFile.setLength(LOCK_HEADER_SIZE);
+            }
+            lockChannel = lockFile.getChannel();
+            lockHeader = lockChannel.map(FileChannel.MapMode.READ_WRITE, 0, LOCK_HEADER_SIZE);
+            FileLock lock = lockFile(true);
+            try {
+                knownGeneration = lockHeader.getLong(LOCK_GENERATION_OFFSET);
+                knownFileId = lockHeader.getLong(LOCK_FILE_ID_OFFSET);
+                loadFile();
+            } finally {
+                lock.release();
+            }
+        }
+    }
+
+    private void loadFile() throws IOException {
+        if (!file.exists()) {
+            return;
+        }
+        ByteBuffer buffer = mapFile();
+        loadedBytes = buffer.limit();
+        if (isMappable(buffer)) {
+            values = readMapped(buffer, null);
+            return;
+        }
+        readPosition = buffer.limit();
+        try (FileInputStream stream = new FileInputStream(file)) {
+            BufferedInputStream bis = new BufferedInputStream(stream);
+            ObjectInputStream ois = new ObjectInputStream(bis);
+
+            readValues(ois);
+        }
+    }
+
+    /**
+     * Maps whole file, in multi-process mode it stays open as {@link #dataChannel}.
+     */
+    private ByteBuffer mapFile() throws IOException {
+        RandomAccessFile file = new RandomAccessFile(this.file, "r");
+        FileChannel channel = file.getChannel();
+        try {
+            // mapping stays valid after channel is closed.
+            ByteBuffer buffer = channel.map(FileChannel.MapMode.READ_ONLY, 0, channel.size());
+            if (options.multiProcess) {
+                dataChannel = channel;
+                channel = null;
+            }
+            return buffer;
+        } finally {
+            if (channel != null) {
+                channel.close();
+            }
+        }
+    }
+
+    private static boolean isMappable(ByteBuffer buffer) {
+        return buffer.limit() >= FLAT_HEADER_SIZE && buffer.getInt(0) == FORMAT_MAGIC;
+    }
+
+    /**
+     * @param logKeys receives names of keys in log records if not null.
+     */
+    private ValueStore readMapped(ByteBuffer buffer, @Nullable Collection<String> logKeys)
+            throws IOException {
+        byte version = buffer.get(4);
+        if (version == FORMAT_VERSION || version == FORMAT_VERSION_STRING_TABLE ||
+                version == FORMAT_VERSION_BLOBS) {
+            return readIndexedValues(buffer, version, logKeys);
+        } else if (version == FORMAT_VERSION_FLAT) {
+            return readMappedValues(buffer, logKeys);
+        }
+        throw new IOException("Unsupported format version " + version);
+    }
+
+    /**
+     * Opens indexed snapshot without reading its records, only log records appended
+     * after it are loaded.
+     */
+    private ValueStore readIndexedValues(ByteBuffer buffer, byte version,
+                                         @Nullable Collection<String> logKeys)
+            throws IOException {
+        MappedSnapshot snapshot = new MappedSnapshot(buffer, version);
+        ByteBuffer in = buffer.duplicate();
+        in.position(snapshot.recordsEnd);
+        ValueStore.Builder values = new ValueStore.Builder(0);
+        boolean appendable = readLog(in, buffer, values);
+        synchronized (fileLock) {
+            this.snapshotSize = snapshot.recordsEnd;
+            this.logSize = appendable ? in.position() - snapshotSize : -1;
+            this.readPosition = in.position();
+        }
+        if (logKeys != null) {
+            values.collectNames(logKeys);
+        }
+        return values.build(snapshot);
+    }
+
+    /**
+     * Builds offset index over mapped file in flat format, string and string set values
+     * are decoded only on first access.
+     */
+    private ValueStore readMappedValues(ByteBuffer buffer, @Nullable Collection<String> logKeys)
+            throws IOException {
+        ByteBuffer in = buffer.duplicate();
+        in.position(5);
+        int count = in.getInt();
+        ValueStore.Builder values = new ValueStore.Builder(count);
+        for (int i = 0; i < count; i++) {
+            readMappedEntry(in, buffer, values);
+        }
+        long snapshotSize = in.position();
+        boolean appendable = readLog(in, buffer, values);
+        synchronized (fileLock) {
+            this.snapshotSize = snapshotSize;
+            this.logSize = appendable ? in.position() - snapshotSize : -1;
+            this.readPosition = in.position();
+        }
+        if (logKeys != null) {
+            values.collectNames(logKeys);
+        }
+        return values.build(null);
+    }
+
+    /**
+     * Applies log records written after snapshot.
+     *
+     * @return false if last record was interrupted.
+     */
+    private static boolean readLog(ByteBuffer in, ByteBuffer buffer,
+                                   ValueStore.Builder values) throws IOException {
+        while (in.remaining() > 0) {
+            int start = in.position();
+            if (in.remaining() < 8) {
+                return false;
+            }
+            int length = in.getInt();
+            if (length <= 0 || length > in.remaining() - 4 ||
+                    in.getInt(in.position() + length) != LOG_RECORD_END) {
+                in.position(start);
+                return false;
+            }
+            int changedCount = in.getInt();
+            for (int i = 0; i < changedCount; i++) {
+                readMappedEntry(in, buffer, values);
+            }
+            int removedCount = in.getInt();
+            for (int i = 0; i < removedCount; i++) {
+                byte[] nameBytes = new byte[in.getShort()];
+                in.get(nameBytes);
+                values.remove(new Key(in.getInt(), nameBytes));
+            }
+            in.getInt();
+        }
+        return true;
+    }
+
+    private static void readMappedEntry(ByteBuffer in, ByteBuffer buffer,
+                                        ValueStore.Builder values) throws IOException {
+        // 1) name
+        int nameLen = in.getShort();
+        byte[] nameBytes = new byte[nameLen];
+        in.get(nameBytes);
+        int hash = in.getInt();
+
+        Key key = new Key(hash, nameBytes);
+
+        // 2) type
+        byte type = in.get();
+        int valueOffset = in.position();
+
+        switch (type) {
+            case ValueStore.TYPE_STRING:
+                skipUTF(in);
+                values.put(key, type, 0, new ValueStore.EncodedValue(buffer, valueOffset,
+                        in.position() - valueOffset));
+                break;
+            case ValueStore.TYPE_STRING_SET:
+                int setLength = in.getInt();
+                for (int setIndex = 0; setIndex < setLength; setIndex++) {
+                    skipUTF(in);
+                }
+                values.put(key, type, 0, new ValueStore.EncodedValue(buffer, valueOffset,
+                        in.position() - valueOffset));
+                break;
+            case ValueStore.TYPE_BYTES:
+                int length = Math.abs(in.getInt());
+                in.position(in.position() + length);
+                values.put(key, type, 0, new ValueStore.EncodedValue(buffer, valueOffset,
+                        4 + length));
+                break;
+            case ValueStore.TYPE_INT:
+                values.put(key, type, in.getInt(), null);
+                break;
+            case ValueStore.TYPE_BOOLEAN:
+                values.put(key, type, in.get(), null);
+                break;
+            case ValueStore.TYPE_LONG:
+                values.put(key, type, in.getLong(), null);
+                break;
+            case ValueStore.TYPE_FLOAT:
+                values.put(key, type, in.getInt(), null);
+                break;
+            default:
+                throw new IOException("Unknown type " + type);
+        }
+    }
+
+    private void readValues(ObjectInputStream ois) throws IOException {
+        int count = ois.readInt();
+        ValueStore.Builder values = new ValueStore.Builder(count);
+        for (int i = 0; i < count; i++) {
+            // 1) name
+            // 1.1 name len
+            int nameLen = ois.readShort();
+            if (nameLen < 0) {
+                Log.e(TAG, "wrong len");
+            }
+            // 1.2 name bytes
+            byte[] nameBytes = new byte[nameLen];
+            ois.readFully(nameBytes);
+            // 1.3 name hash
+            int hash = ois.readInt();
+
+            Key key = new Key(hash, nameBytes);
+
+            // 2) type
+            byte type = ois.readByte();
+
+            switch (type) {
+                case ValueStore.TYPE_STRING:
+                    values.put(key, type, 0, readUTF(ois));
+                    break;
+                case ValueStore.TYPE_STRING_SET:
+                    int setLength = ois.readInt();
+                    String[] set = new String[setLength];
+                    for (int setIndex = 0; setIndex < setLength; setIndex++) {
+                        set[setIndex] = ois.readUTF();
+                    }
+                    values.put(key, type, 0, CompactStringSet.copyOf(Arrays.asList(set)));
+                    break;
+                case ValueStore.TYPE_INT:
+                    values.put(key, type, ois.readInt(), null);
+                    break;
+                case ValueStore.TYPE_BOOLEAN:
+                    values.put(key, type, ois.readBoolean() ? 1 : 0, null);
+                    break;
+                case ValueStore.TYPE_LONG:
+                    values.put(key, type, ois.readLong(), null);
+                    break;
+                case ValueStore.TYPE_FLOAT:
+                    values.put(key, type, Float.floatToRawIntBits(ois.readFloat()), null);
+                    break;
+            }
+        }
+        this.values = values.build(null);
+    }
+
+    private static String readUTF(ObjectInputStream ois) throws IOException {
+        int len = ois.readShort();
+        byte[] buf = new byte[len];
+        ois.readFully(buf);
+        return new String(buf, StandardCharsets.UTF_8);
+    }
+
+    private static void skipUTF(ByteBuffer in) {
+        // negative length is size of deflated string.
+        int len = Math.abs(in.getInt());
+        in.position(in.position() + len);
+    }
+
+    /**
+     * Publishes edited values, their changed keys are written by next {@link #write()}.
+     */
+    void update(ValueStore values, Collection<String> changedKeys) {
+        synchronized (dirtyLock) {
+            this.values = values;
+            dirtyKeys.addAll(changedKeys);
+            generation++;
+        }
+    }
+
+    /**
+     * Writes current values of keys changed since last write, whole file is rewritten unless
+     * delta log is enabled. Does nothing if file already has current generation, so flushes
+     * queued before a newer write are dropped.
+     *
+     * @return true if changes reached storage.
+     */
+    boolean write() {
+        HashSet<String> externalChanges = new HashSet<>();
+        boolean success;
+        synchronized (fileLock) {
+            FileLock lock;
+            try {
+                lock = lockForWrite(externalChanges);
+            } catch (IOException e) {
+                Log.e(TAG, "Lock error", e);
+                return false;
+            }
+            try {
+                success = writeChanges();
+            } finally {
+                release(lock);
+            }
+        }
+        notifyExternalChanges(externalChanges);
+        return success;
+    }
+
+    private boolean writeChanges() {
+        synchronized (fileLock) {
+            ValueStore values;
+            HashSet<String> keys;
+            long generation;
+            synchronized (dirtyLock) {
+                if (writtenGeneration == this.generation) {
+                    if (metrics != null) {
+                        metrics.onFlushDropped();
+                    }
+                    return true;
+                }
+                values = this.values;
+                keys = dirtyKeys;
+                generation = this.generation;
+                dirtyKeys = new HashSet<>();
+            }
+            boolean success = deltaLog ? appendToLog(values, keys) : saveToFile(values);
+            if (success) {
+                writtenGeneration = generation;
+            } else {
+                // keep keys for next write.
+                synchronized (dirtyLock) {
+                    dirtyKeys.addAll(keys);
+                }
+            }
+            return success;
+        }
+    }
+
+    private boolean saveToFile(ValueStore values) {
+        synchronized (fileLock) {
+            // previous file may be still mapped by loaded snapshot, so it's replaced
+            // instead of truncated.
+            if (file.exists()) {
+                if (!file.delete()) {
+                    Log.e(TAG, "Can't delete existing file");
+                }
+            }
+            try (FileOutputStream fos = new FileOutputStream(file)) {
+                long start = metrics != null ? System.nanoTime() : 0;
+                long size = encoder.writeSnapshot(fos.getChannel(), values,
+                        options.stringTable);
+                long written = metrics != null ? System.nanoTime() : 0;
+                fos.getFD().sync();
+                if (metrics != null) {
+                    metrics.onWrite(written - start, System.nanoTime() - written, size,
+                            values.count());
+                }
+            } catch (Exception e) {
+                Log.e(TAG, "Save error", e);
+                return false;
+            }
+            rebase(values);
+            return true;
+        }
+    }
+
+    /**
+     * Appends current values of given keys after the last snapshot, keys missing in memory
+     * are written as removed. Falls back to full snapshot when file can't be appended.
+     */
+    private boolean appendToLog(ValueStore values, Collection<String> keys) {
+        synchronized (fileLock) {
+            if (logSize < 0 || !isAppendable()) {
+                return writeSnapshot(values, false);
+            }
+            try (FileOutputStream fos = new FileOutputStream(file, true)) {
+                long start = metrics != null ? System.nanoTime() : 0;
+                long size = encoder.writeLogRecord(fos.getChannel(), values, keys);
+                long written = metrics != null ? System.nanoTime() : 0;
+                fos.getFD().sync();
+                logSize += size;
+                if (lockHeader != null) {
+                    readPosition += size;
+                    publishWrite(false, false);
+                }
+                if (metrics != null) {
+                    metrics.onWrite(written - start, System.nanoTime() - written, size,
+                            keys.size());
+                }
+            } catch (IOException e) {
+                Log.e(TAG, "Append error", e);
+                // file may end with partial record now.
+                logSize = -1;
+                return false;
+            }
+            if (!compactionScheduled && (logSize >= options.compactionThreshold ||
+                    logSize >= snapshotSize * options.compactionRatio)) {
+                compactionScheduled = true;
+                compactionExecutor.get().execute(this::compact);
+            }
+            return true;
+        }
+    }
+
+    private void compact() {
+        try {
+            synchronized (fileLock) {
+                if (closed) {
+                    // log stays readable, it is compacted after a write of the next store.
+                    return;
+                }
+            }
+            writeSnapshot();
+        } finally {
+            synchronized (fileLock) {
+                compactionScheduled = false;
+            }
+        }
+    }
+
+    /**
+     * @return true if compaction is queued or running.
+     */
+    boolean isCompacting() {
+        return compactionScheduled;
+    }
+
+    /**
+     * Replaces file with snapshot of current values.
+     *
+     * @return true if snapshot reached storage.
+     */
+    boolean writeSnapshot() {
+        HashSet<String> externalChanges = new HashSet<>();
+        synchronized (fileLock) {
+            FileLock lock;
+            try {
+                lock = lockForWrite(externalChanges);
+            } catch (IOException e) {
+                Log.e(TAG, "Lock error", e);
+                return false;
+            }
+            try {
+                ValueStore values;
+                HashSet<String> keys;
+                long generation;
+                synchronized (dirtyLock) {
+                    values = this.values;
+                    keys = dirtyKeys;
+                    generation = this.generation;
+                    dirtyKeys = new HashSet<>();
+                }
+                // without unwritten keys the snapshot has the same values as the file.
+                if (!writeSnapshot(values, keys.isEmpty())) {
+                    synchronized (dirtyLock) {
+                        dirtyKeys.addAll(keys);
+                    }
+                    return false;
+                }
+                writtenGeneration = generation;
+            } finally {
+                release(lock);
+            }
+        }
+        notifyExternalChanges(externalChanges);
+        return true;
+    }
+
+    /**
+     * @param compaction true if snapshot has the same values as the file it replaces.
+     */
+    private boolean writeSnapshot(ValueStore snapshot, boolean compaction) {
+        synchronized (fileLock) {
+            File tmpFile = new File(file.getPath() + ".tmp");
+            try {
+                long size;
+                try (FileOutputStream fos = new FileOutputStream(tmpFile)) {
+                    long start = metrics != null ? System.nanoTime() : 0;
+                    size = encoder.writeSnapshot(fos.getChannel(), snapshot,
+                            options.stringTable);
+                    long written = metrics != null ? System.nanoTime() : 0;
+                    fos.getFD().sync();
+                    if (metrics != null) {
+                        metrics.onWrite(written - start, System.nanoTime() - written, size,
+                                snapshot.count());
+                    }
+                }
+                if (!tmpFile.renameTo(file)) {
+                    throw new IOException("Can't rename " + tmpFile);
+                }
+                snapshotSize = size;
+                logSize = 0;
+                if (lockHeader != null) {
+                    closeDataChannel();
+                    dataChannel = new RandomAccessFile(file, "r").getChannel();
+                    readPosition = size;
+                    publishWrite(true, compaction);
+                }
+            } catch (IOException e) {
+                Log.e(TAG, "Save error", e);
+                logSize = -1;
+                return false;
+            }
+            rebase(snapshot);
+            return true;
+        }
+    }
+
+    /**
+     * Replaces written values with view of just written snapshot, so values changed before
+     * the write don't stay on heap. Values changed after the write are kept.
+     */
+    private void rebase(ValueStore written) {
+        if (!options.offHeap || (written.size == 0 && written.base != null)) {
+            return;
+        }
+        ValueStore values;
+        try (RandomAccessFile file = new RandomAccessFile(this.file, "r");
+             FileChannel channel = file.getChannel()) {
+            ByteBuffer buffer = channel.map(FileChannel.MapMode.READ_ONLY, 0, channel.size());
+            values = new ValueStore.Builder(0).build(new MappedSnapshot(buffer, buffer.get(4)));
+        } catch (IOException e) {
+            Log.e(TAG, "Can't map written file", e);
+            return;
+        }
+        synchronized (dirtyLock) {
+            if (this.values == written) {
+                this.values = values;
+            }
+        }
+    }
+
+    /**
+     * Merges changes of other processes if there are any, listener is notified about
+     * changed keys. Does nothing unless multi-process mode is enabled.
+     */
+    void reload() {
+        if (!hasExternalChanges()) {
+            return;
+        }
+        Set<String> changed;
+        synchronized (fileLock) {
+            if (closed || lockChannel == null) {
+                return;
+            }
+            FileLock lock = null;
+            try {
+                lock = lockFile(true);
+                changed = readExternalChanges();
+            } catch (IOException e) {
+                Log.e(TAG, "Reload error", e);
+                return;
+            } finally {
+                release(lock);
+            }
+        }
+        notifyExternalChanges(changed);
+    }
+
+    /**
+     * Compares generation of the file with the one values are read from, doesn't take locks.
+     */
+    boolean hasExternalChanges() {
+        ByteBuffer lockHeader = this.lockHeader;
+        return lockHeader != null &&
+                lockHeader.getLong(LOCK_GENERATION_OFFSET) != knownGeneration;
+    }
+
+    /**
+     * Takes exclusive lock of lock file and merges changes of other processes, so they
+     * are not overwritten by this write.
+     *
+     * @return null unless multi-process mode is enabled or if the lock is already taken.
+     */
+    @Nullable
+    private FileLock lockForWrite(Set<String> externalChanges) throws IOException {
+        if (closed) {
+            throw new IOException("Closed " + file);
+        }
+        if (lockChannel == null || writeLock != null) {
+            return null;
+        }
+        FileLock lock = lockFile(false);
+        try {
+            externalChanges.addAll(readExternalChanges());
+        } catch (IOException e) {
+            lock.release();
+            throw e;
+        }
+        writeLock = lock;
+        return lock;
+    }
+
+    /**
+     * Locks whole lock file, called under {@link #fileLock}.
+     *
+     * @throws IOException also if other instance of the file in this process holds the lock.
+     */
+    private FileLock lockFile(boolean shared) throws IOException {
+        try {
+            return lockChannel.lock(0, Long.MAX_VALUE, shared);
+        } catch (OverlappingFileLockException e) {
+            throw new IOException("File is locked by other instance in this process: " + file,
+                    e);
+        }
+    }
+
+    private void release(@Nullable FileLock lock) {
+        if (lock == null) {
+            return;
+        }
+        if (lock == writeLock) {
+            writeLock = null;
+        }
+        try {
+            lock.release();
+        } catch (IOException e) {
+            Log.e(TAG, "Can't release file lock", e);
+        }
+    }
+
+    /**
+     * Increments generation after successful write, called under exclusive lock.
+     *
+     * @param replaced   true if data file was replaced by snapshot.
+     * @param compaction true if replaced file has the same values.
+     */
+    private void publishWrite(boolean replaced, boolean compaction) {
+        long generation = lockHeader.getLong(LOCK_GENERATION_OFFSET) + 1;
+        if (replaced) {
+            long fileId = lockHeader.getLong(LOCK_FILE_ID_OFFSET) + 1;
+            lockHeader.putLong(LOCK_COMPACTED_OFFSET, compaction ? fileId - 1 : -1);
+            lockHeader.putLong(LOCK_FILE_ID_OFFSET, fileId);
+            knownFileId = fileId;
+        }
+        lockHeader.putLong(LOCK_GENERATION_OFFSET, generation);
+        knownGeneration = generation;
+    }
+
+    /**
+     * Checks that file ends with records read by this process, record interrupted
+     * by other process is left at the end otherwise.
+     */
+    private boolean isAppendable() {
+        if (lockHeader == null) {
+            return true;
+        }
+        try {
+            return dataChannel != null && dataChannel.size() == readPosition;
+        } catch (IOException e) {
+            Log.e(TAG, "Can't read file size", e);
+            return false;
+        }
+    }
+
+    /**
+     * Merges changes written by other processes since values were read, called under
+     * lock of lock file. Keys changed by this process and not written yet keep their values.
+     * Records appended to the file that values are read from are read as is, keys of
+     * replaced file are compared with current values: only keys of its log records and
+     * of appended records if it's compaction of the file that values are read from,
+     * otherwise all keys.
+     *
+     * @return names of changed keys.
+     */
+    private Set<String> readExternalChanges() throws IOException {
+        long generation = lockHeader.getLong(LOCK_GENERATION_OFFSET);
+        if (generation == knownGeneration) {
+            return Collections.emptySet();
+        }
+        long fileId = lockHeader.getLong(LOCK_FILE_ID_OFFSET);
+        ValueStore.Builder appended = new ValueStore.Builder(0);
+        boolean complete = readAppended(appended);
+        ValueStore replaced = null;
+        HashSet<String> keys = null;
+        if (fileId != knownFileId) {
+            HashSet<String> logKeys = new HashSet<>();
+            replaced = readReplaced(logKeys);
+            if (complete && fileId == knownFileId + 1 &&
+                    lockHeader.getLong(LOCK_COMPACTED_OFFSET) == knownFileId) {
+                keys = logKeys;
+                appended.collectNames(keys);
+            }
+        }
+        HashSet<String> changed = new HashSet<>();
+        synchronized (editLock) {
+            ValueStore current;
+            HashSet<String> dirty;
+            synchronized (dirtyLock) {
+                current = this.values;
+                dirty = new HashSet<>(dirtyKeys);
+            }
+            ArrayList<String> removed = new ArrayList<>();
+            EditBuffer puts = new EditBuffer();
+            ValueStore values;
+            if (replaced == null) {
+                appended.collectEdit(removed, puts, dirty);
+                values = current.edit(removed, puts, changed);
+            } else {
+                if (keys == null) {
+                    keys = new HashSet<>();
+                    current.collectKeys(null, keys);
+                    replaced.collectKeys(null, keys);
+                }
+                for (String name : keys) {
+                    if (!dirty.contains(name)) {
+                        replaced.copyEntry(name, removed, puts);
+                    }
+                }
+                current.edit(removed, puts, changed);
+                // values are read from new file with unwritten changes on top.
+                removed.clear();
+                puts.clear();
+                for (String name : dirty) {
+                    current.copyEntry(name, removed, puts);
+                }
+                values = replaced.edit(removed, puts, new HashSet<>());
+            }
+            synchronized (dirtyLock) {
+                this.values = values;
+            }
+        }
+        knownGeneration = generation;
+        knownFileId = fileId;
+        return changed;
+    }
+
+    /**
+     * Reads log records appended to {@link #dataChannel} after {@link #readPosition}.
+     *
+     * @return false if last record was interrupted.
+     */
+    private boolean readAppended(ValueStore.Builder values) throws IOException {
+        if (dataChannel == null) {
+            return true;
+        }
+        long size = dataChannel.size();
+        if (size <= readPosition) {
+            return true;
+        }
+        ByteBuffer buffer = dataChannel.map(FileChannel.MapMode.READ_ONLY, readPosition,
+                size - readPosition);
+        ByteBuffer in = buffer.duplicate();
+        boolean complete = readLog(in, buffer, values);
+        readPosition += in.position();
+        if (!complete) {
+            logSize = -1;
+        } else if (logSize >= 0) {
+            logSize = readPosition - snapshotSize;
+        }
+        return complete;
+    }
+
+    /**
+     * Opens file that replaced the one values are read from.
+     *
+     * @param logKeys receives names of keys in log records of new file.
+     */
+    private ValueStore readReplaced(Collection<String> logKeys) throws IOException {
+        closeDataChannel();
+        if (!file.exists()) {
+            snapshotSize = 0;
+            logSize = -1;
+            readPosition = 0;
+            return ValueStore.EMPTY;
+        }
+        ByteBuffer buffer = mapFile();
+        if (!isMappable(buffer)) {
+            throw new IOException("Unsupported format of replaced file");
+        }
+        return readMapped(buffer, logKeys);
+    }
+
+    private void closeDataChannel() {
+        if (dataChannel == null) {
+            return;
+        }
+        try {
+            dataChannel.close();
+        } catch (IOException e) {
+            Log.e(TAG, "Can't close file", e);
+        }
+        dataChannel = null;
+    }
+
+    private void notifyExternalChanges(Set<String> keys) {
+        if (!keys.isEmpty() && externalChangesListener != null) {
+            externalChangesListener.onExternalChanges(keys);
+        }
+    }
+
+    /**
+     * Closes files kept open in multi-process mode, later writes fail.
+     */
+    void close() {
+        synchronized (fileLock) {
+            closed = true;
+            closeDataChannel();
+            if (lockChannel != null) {
+                try {
+                    lockChannel.close();
+                } catch (IOException e) {
+                    Log.e(TAG, "Can't close lock file", e);
+                }
+                lockChannel = null;
+                lockHeader = null;
+            }
+        }
+    }
+}
@@ -0,0 +1,1001 @@
+package com.github.grishberg.binarypreferences;
+
+import java.nio.ByteBuffer;
+import java.nio.charset.StandardCharsets;
+import java.util.Arrays;
+import java.util.Collection;
+import java.util.HashMap;
+import java.util.Map;
+import java.util.Set;
+import java.util.zip.DataFormatException;
+import java.util.zip.Inflater;
+
+import androidx.annotation.Nullable;
+
+/**
+ * Immutable snapshot of preferences values.
+ * Entries are sorted by key hash and found through open addressing table,
+ * values are kept in parallel arrays by entry index:
+ * int, long, float and boolean values unboxed in {@link #primitives},
+ * strings, string sets and blobs in {@link #objects}.
+ * <p>
+ * When loaded from indexed file, entries are overlay over {@link #base}: they override
+ * records of the mapped snapshot and {@link #TYPE_REMOVED} entries hide them, so
+ * only changed keys are kept on heap.
+ */
+final class ValueStore {
+    static final byte TYPE_STRING = 0;
+    static final byte TYPE_STRING_SET = 1;
+    static final byte TYPE_INT = 2;
+    static final byte TYPE_BOOLEAN = 3;
+    static final byte TYPE_LONG = 4;
+    static final byte TYPE_FLOAT = 5;
+    /**
+     * Read-only {@link ByteBuffer}, stored out of line in indexed snapshots.
+     */
+    static final byte TYPE_BYTES = 6;
+    /**
+     * Marks removed entries, built store keeps them only to hide records of {@link #base}.
+     */
+    static final byte TYPE_REMOVED = -1;
+    /**
+     * Marks entries dropped while store is being edited.
+     */
+    private static final byte TYPE_DROPPED = -2;
+
+    static final ValueStore EMPTY = new ValueStore(null, 0, new int[0], new Key[0], new byte[0],
+            new long[0], new Object[0], buildTable(new int[0], 0));
+
+    @Nullable
+    final MappedSnapshot base;
+    final int size;
+    final int[] hashes;
+    final Key[] keys;
+    final byte[] types;
+    final long[] primitives;
+    /**
+     * Strings, string sets and blobs, value stays {@link EncodedValue} until first access.
+     */
+    final Object[] objects;
+    /**
+     * Open addressing table of {@code index + 1} by key hash, 0 is empty slot.
+     */
+    private final int[] table;
+    /**
+     * Entry indexes sorted by key bytes, created on first prefix scan and carried over
+     * to edited copies of the store.
+     */
+    @Nullable
+    private volatile int[] sortedEntries;
+
+    private ValueStore(@Nullable MappedSnapshot base, int size, int[] hashes, Key[] keys,
+                       byte[] types, long[] primitives, Object[] objects, int[] table) {
+        this.base = base;
+        this.size = size;
+        this.hashes = hashes;
+        this.keys = keys;
+        this.types = types;
+        this.primitives = primitives;
+        this.objects = objects;
+        this.table = table;
+    }
+
+    private ValueStore(@Nullable MappedSnapshot base, int size, int[] hashes, Key[] keys,
+                       byte[] types, long[] primitives, Object[] objects) {
+        this(base, size, hashes, keys, types, primitives, objects, buildTable(hashes, size));
+    }
+
+    /**
+     * Finds entry by name without allocations: {@link String#hashCode()} is cached by string
+     * and is the same hash that is stored in {@link Key#hash}, colliding keys are compared
+     * with their UTF-8 bytes directly.
+     *
+     * @return entry index or -1 when there is no such key, {@link #base} is not checked.
+     */
+    int indexOf(String name) {
+        int hash = name.hashCode();
+        int mask = table.length - 1;
+        for (int slot = spread(hash) & mask; ; slot = (slot + 1) & mask) {
+            int entry = table[slot];
+            if (entry == 0) {
+                return -1;
+            }
+            int index = entry - 1;
+            if (hashes[index] == hash && keys[index].matches(name)) {
+                return index;
+            }
+        }
+    }
+
+    /**
+     * @return entry index, {@code -2 - slot} for record of {@link #base} or -1.
+     */
+    private int find(String name) {
+        int index = indexOf(name);
+        if (index >= 0) {
+            return types[index] == TYPE_REMOVED ? -1 : index;
+        }
+        if (base != null) {
+            int slot = base.find(name);
+            if (slot >= 0) {
+                return -2 - slot;
+            }
+        }
+        return -1;
+    }
+
+    /**
+     * Same as {@link #find(String)}, but reuses position cached in the key when entries
+     * of this store are at the same places: edits that don't add or drop keys share
+     * keys array with previous store.
+     */
+    int find(PreferenceKey<?> key) {
+        PreferenceKey.Resolution resolution = key.resolution;
+        if (resolution == null || resolution.keys != keys || resolution.base != base) {
+            int position = indexOf(key.name);
+            if (position < 0 && base != null) {
+                int slot = base.find(key.name);
+                position = slot >= 0 ? -2 - slot : -1;
+            }
+            resolution = new PreferenceKey.Resolution(keys, base, position);
+            key.resolution = resolution;
+        }
+        int position = resolution.position;
+        // removed entry stays in place and hides record of base.
+        return position >= 0 && types[position] == TYPE_REMOVED ? -1 : position;
+    }
+
+    /**
+     * Returns int, long, float or boolean value of the key packed same as in
+     * {@link #primitives}.
+     */
+    long getPrimitive(PreferenceKey<?> key) {
+        int position = find(key);
+        return position == -1 ? key.defPrimitive : getPrimitive(position, key.type);
+    }
+
+    @Nullable
+    Object get(PreferenceKey<?> key) {
+        int position = find(key);
+        if (position == -1) {
+            return key.defValue;
+        }
+        return isObjectType(key.type) ? getObject(position, key.type) :
+                box(key.type, getPrimitive(position, key.type));
+    }
+
+    /**
+     * Checks if there is entry with the same key as record of {@link #base}.
+     */
+    boolean shadows(int record) {
+        int hash = base.hashAt(record);
+        int mask = table.length - 1;
+        for (int slot = spread(hash) & mask; ; slot = (slot + 1) & mask) {
+            int entry = table[slot];
+            if (entry == 0) {
+                return false;
+            }
+            int index = entry - 1;
+            if (hashes[index] == hash && base.keyEquals(record, keys[index])) {
+                return true;
+            }
+        }
+    }
+
+    /**
+     * Returns number of keys including unchanged records of {@link #base}.
+     */
+    int count() {
+        int count = 0;
+        int shadowed = 0;
+        for (int i = 0; i < size; i++) {
+            if (types[i] != TYPE_REMOVED) {
+                count++;
+            }
+            if (base != null && base.find(keys[i]) >= 0) {
+                shadowed++;
+            }
+        }
+        return base == null ? count : count + base.count - shadowed;
+    }
+
+    private static int[] buildTable(int[] hashes, int size) {
+        int capacity = 2;
+        while (capacity < size * 2) {
+            capacity <<= 1;
+        }
+        int[] table = new int[capacity];
+        int mask = capacity - 1;
+        for (int i = 0; i < size; i++) {
+            int slot = spread(hashes[i]) & mask;
+            while (table[slot] != 0) {
+                slot = (slot + 1) & mask;
+            }
+            table[slot] = i + 1;
+        }
+        return table;
+    }
+
+    private static int spread(int hash) {
+        return MappedSnapshot.spread(hash);
+    }
+
+    boolean contains(String name) {
+        return find(name) != -1;
+    }
+
+    int getInt(String name, int defValue) {
+        int position = find(name);
+        return position == -1 ? defValue : (int) getPrimitive(position, TYPE_INT);
+    }
+
+    long getLong(String name, long defValue) {
+        int position = find(name);
+        return position == -1 ? defValue : getPrimitive(position, TYPE_LONG);
+    }
+
+    float getFloat(String name, float defValue) {
+        int position = find(name);
+        return position == -1 ? defValue :
+                Float.intBitsToFloat((int) getPrimitive(position, TYPE_FLOAT));
+    }
+
+    boolean getBoolean(String name, boolean defValue) {
+        int position = find(name);
+        return position == -1 ? defValue : getPrimitive(position, TYPE_BOOLEAN) != 0;
+    }
+
+    @Nullable
+    String getString(String name, @Nullable String defValue) {
+        int position = find(name);
+        return position == -1 ? defValue : (String) getObject(position, TYPE_STRING);
+    }
+
+    @Nullable
+    @SuppressWarnings("unchecked")
+    Set<String> getStringSet(String name, @Nullable Set<String> defValues) {
+        int position = find(name);
+        return position == -1 ? defValues : (Set<String>) getObject(position, TYPE_STRING_SET);
+    }
+
+    /**
+     * Returns own view of stored bytes, content is not copied.
+     */
+    @Nullable
+    ByteBuffer getBytes(String name, @Nullable ByteBuffer defValue) {
+        int position = find(name);
+        return position == -1 ? defValue :
+                ((ByteBuffer) getObject(position, TYPE_BYTES)).duplicate();
+    }
+
+    private long getPrimitive(int position, byte type) {
+        if (position >= 0) {
+            checkType(position, type);
+            return primitives[position];
+        }
+        int slot = -2 - position;
+        checkBaseType(slot, type);
+        return base.primitive(slot);
+    }
+
+    private Object getObject(int position, byte type) {
+        if (position >= 0) {
+            checkType(position, type);
+            return getObject(position);
+        }
+        int slot = -2 - position;
+        checkBaseType(slot, type);
+        return base.object(slot);
+    }
+
+    /**
+     * Returns rough number of bytes held by values, mapped snapshot is counted by its size
+     * because decoded strings of touched records are cached on heap.
+     */
+    long estimatedSize() {
+        // parallel arrays, table slots and key object.
+        long estimate = size * 64L;
+        for (int i = 0; i < size; i++) {
+            estimate += keys[i].bytes.length;
+            Object value = objects[i];
+            if (value instanceof String) {
+                estimate += 2L * ((String) value).length();
+            } else if (value instanceof EncodedValue) {
+                estimate += ((EncodedValue) value).length;
+            } else if (value instanceof ByteBuffer && !((ByteBuffer) value).isDirect()) {
+                estimate += ((ByteBuffer) value).capacity();
+            } else if (value instanceof Set) {
+                for (Object str : (Set<?>) value) {
+                    estimate += 32 + 2L * ((String) str).length();
+                }
+            }
+        }
+        if (base != null) {
+            estimate += base.buffer.capacity();
+        }
+        return estimate;
+    }
+
+    /**
+     * Puts all keys with boxed values into {@code map}.
+     */
+    void copyTo(Map<String, Object> map) {
+        forEach(null, map::put);
+    }
+
+    /**
+     * Visits keys starting with {@code prefix} or all keys when it is null, in no particular
+     * order. Prefix scan uses sorted index of entry keys and sorted index of {@link #base}
+     * records, so only matching entries are decoded.
+     *
+     * @param prefix UTF-8 bytes of key prefix.
+     */
+    void forEach(@Nullable byte[] prefix, PreferenceVisitor visitor) {
+        forEach(prefix, visitor, null);
+    }
+
+    /**
+     * Adds keys starting with {@code prefix} or all keys when it is null to {@code names}
+     * without decoding values.
+     */
+    void collectKeys(@Nullable byte[] prefix, Collection<String> names) {
+        forEach(prefix, null, names);
+    }
+
+    /**
+     * Passes entries to {@code visitor}, or only their names to {@code names} if visitor
+     * is null.
+     */
+    private void forEach(@Nullable byte[] prefix, @Nullable PreferenceVisitor visitor,
+                         @Nullable Collection<String> names) {
+        if (prefix == null) {
+            for (int i = 0; i < size; i++) {
+                visitEntry(i, visitor, names);
+            }
+        } else {
+            int[] sorted = sortedEntries();
+            for (int i = lowerBound(sorted, prefix); i < sorted.length &&
+                    startsWith(keys[sorted[i]].bytes, prefix); i++) {
+                visitEntry(sorted[i], visitor, names);
+            }
+        }
+        if (base == null) {
+            return;
+        }
+        if (prefix == null) {
+            for (int record = base.recordsStart; record < base.recordsEnd;
+                 record = base.nextRecord(record)) {
+                visitRecord(record, visitor, names);
+            }
+        } else {
+            int[] sorted = base.sortedRecords();
+            for (int i = base.lowerBound(sorted, prefix); i < sorted.length &&
+                    base.nameStartsWith(sorted[i], prefix); i++) {
+                visitRecord(sorted[i], visitor, names);
+            }
+        }
+    }
+
+    private void visitEntry(int index, @Nullable PreferenceVisitor visitor,
+                            @Nullable Collection<String> names) {
+        byte type = types[index];
+        if (type == TYPE_REMOVED) {
+            return;
+        }
+        if (visitor == null) {
+            names.add(keys[index].getText());
+            return;
+        }
+        Object value = isObjectType(type) ? view(getObject(index)) : box(type, primitives[index]);
+        visitor.visit(keys[index].getText(), value);
+    }
+
+    private void visitRecord(int record, @Nullable PreferenceVisitor visitor,
+                             @Nullable Collection<String> names) {
+        if (shadows(record)) {
+            return;
+        }
+        if (visitor == null) {
+            names.add(base.nameAt(record));
+            return;
+        }
+        byte type = base.typeAt(record);
+        Object value = isObjectType(type) ? view(base.objectAt(record)) :
+                box(type, MappedSnapshot.readPrimitive(base.buffer, type,
+                        base.valueOffset(record)));
+        visitor.visit(base.nameAt(record), value);
+    }
+
+    /**
+     * Returns entry indexes in unsigned order of UTF-8 key bytes.
+     */
+    private int[] sortedEntries() {
+        int[] sorted = sortedEntries;
+        if (sorted == null) {
+            sorted = new int[size];
+            for (int i = 0; i < size; i++) {
+                sorted[i] = i;
+            }
+            IntSort.sort(sorted, (a, b) -> compare(keys[a].bytes, keys[b].bytes));
+            // same index is built by each thread, volatile field publishes array content.
+            sortedEntries = sorted;
+        }
+        return sorted;
+    }
+
+    private int lowerBound(int[] sorted, byte[] prefix) {
+        int low = 0;
+        int high = sorted.length;
+        while (low < high) {
+            int middle = (low + high) >>> 1;
+            if (compare(keys[sorted[middle]].bytes, prefix) < 0) {
+                low = middle + 1;
+            } else {
+                high = middle;
+            }
+        }
+        return low;
+    }
+
+    private static int compare(byte[] a, byte[] b) {
+        int length = Math.min(a.length, b.length);
+        for (int i = 0; i < length; i++) {
+            int diff = (a[i] & 0xFF) - (b[i] & 0xFF);
+            if (diff != 0) {
+                return diff;
+            }
+        }
+        return a.length - b.length;
+    }
+
+    private static boolean startsWith(byte[] bytes, byte[] prefix) {
+        if (bytes.length < prefix.length) {
+            return false;
+        }
+        for (int i = 0; i < prefix.length; i++) {
+            if (bytes[i] != prefix[i]) {
+                return false;
+            }
+        }
+        return true;
+    }
+
+    /**
+     * Blobs are shared, each caller gets own position and limit.
+     */
+    private static Object view(Object value) {
+        return value instanceof ByteBuffer ? ((ByteBuffer) value).duplicate() : value;
+    }
+
+    private static Object box(byte type, long primitive) {
+        switch (type) {
+            case TYPE_INT:
+                return (int) primitive;
+            case TYPE_LONG:
+                return primitive;
+            case TYPE_FLOAT:
+                return Float.intBitsToFloat((int) primitive);
+            default:
+                return primitive != 0;
+        }
+    }
+
+    /**
+     * Returns decoded string, string set or blob of entry.
+     */
+    Object getObject(int index) {
+        Object value = objects[index];
+        if (value instanceof EncodedValue) {
+            value = ((EncodedValue) value).decode(types[index]);
+            // may be decoded concurrently by several readers. Strings and string sets are
+            // safe for publication without synchronization thanks to their final fields,
+            // ByteBuffer isn't, so blob view is created on each read instead.
+            if (types[index] != TYPE_BYTES) {
+                objects[index] = value;
+            }
+        }
+        return value;
+    }
+
+    private void checkType(int index, byte type) {
+        if (types[index] != type) {
+            throw new ClassCastException("Value of " + keys[index].getText() +
+                    " has type " + types[index] + ", requested " + type);
+        }
+    }
+
+    private void checkBaseType(int slot, byte type) {
+        int record = base.record(slot);
+        if (base.typeAt(record) != type) {
+            throw new ClassCastException("Value of " + base.nameAt(record) +
+                    " has type " + base.typeAt(record) + ", requested " + type);
+        }
+    }
+
+    /**
+     * Returns copy of store with removed keys and puts applied, puts are applied after removals.
+     * Puts of the same value and removals of missing keys are skipped, names of actually
+     * changed keys are added to {@code changed}. Returns this store if nothing is changed.
+     */
+    ValueStore edit(Collection<String> removed, EditBuffer puts, Set<String> changed) {
+        Edit edit = null;
+        for (String name : removed) {
+            if (puts.indexOf(name) < 0 && contains(name)) {
+                if (edit == null) {
+                    edit = new Edit(this, removed.size() + puts.size);
+                }
+                edit.remove(name);
+                changed.add(name);
+            }
+        }
+        for (int i = 0; i < puts.size; i++) {
+            String name = puts.names[i];
+            byte type = puts.types[i];
+            Object object = puts.objects[i];
+            // put of null string or set removes the key.
+            boolean remove = object == null && isObjectType(type);
+            if (remove ? !contains(name) : hasValue(name, type, puts.primitives[i], object)) {
+                continue;
+            }
+            if (edit == null) {
+                edit = new Edit(this, removed.size() + puts.size);
+            }
+            if (remove) {
+                edit.remove(name);
+            } else {
+                edit.put(name, type, puts.primitives[i], object);
+            }
+            changed.add(name);
+        }
+        return edit != null ? edit.build() : this;
+    }
+
+    /**
+     * Adds current value of the key to edit, missing key is added to {@code removed}.
+     */
+    void copyEntry(String name, Collection<String> removed, EditBuffer puts) {
+        int position = find(name);
+        if (position == -1) {
+            removed.add(name);
+        } else if (position >= 0) {
+            byte type = types[position];
+            puts.put(name, type, primitives[position],
+                    isObjectType(type) ? getObject(position) : null);
+        } else {
+            int slot = -2 - position;
+            byte type = base.type(slot);
+            if (isObjectType(type)) {
+                puts.put(name, type, 0, base.object(slot));
+            } else {
+                puts.put(name, type, base.primitive(slot), null);
+            }
+        }
+    }
+
+    /**
+     * Checks if key has value of the same type equal to given one.
+     */
+    private boolean hasValue(String name, byte type, long primitive, @Nullable Object object) {
+        int position = find(name);
+        if (position == -1) {
+            return false;
+        }
+        if (position >= 0) {
+            if (types[position] != type) {
+                return false;
+            }
+            return isObjectType(type) ? getObject(position).equals(object) :
+                    primitives[position] == primitive;
+        }
+        int slot = -2 - position;
+        if (base.type(slot) != type) {
+            return false;
+        }
+        return isObjectType(type) ? base.object(slot).equals(object) :
+                base.primitive(slot) == primitive;
+    }
+
+    /**
+     * Copy of entries being edited, keys are added and dropped on {@link #build()}.
+     */
+    private static final class Edit {
+        private final ValueStore source;
+        private final byte[] types;
+        private final long[] primitives;
+        private final Object[] objects;
+        private int droppedCount;
+
+        private final Key[] addedKeys;
+        private final byte[] addedTypes;
+        private final long[] addedPrimitives;
+        private final Object[] addedObjects;
+        private int addedCount;
+
+        Edit(ValueStore source, int capacity) {
+            this.source = source;
+            types = Arrays.copyOf(source.types, source.size);
+            primitives = Arrays.copyOf(source.primitives, source.size);
+            objects = Arrays.copyOf(source.objects, source.size);
+            addedKeys = new Key[capacity];
+            addedTypes = new byte[capacity];
+            addedPrimitives = new long[capacity];
+            addedObjects = new Object[capacity];
+        }
+
+        void remove(String name) {
+            int index = source.indexOf(name);
+            if (index >= 0 && (types[index] == TYPE_REMOVED || types[index] == TYPE_DROPPED)) {
+                return;
+            }
+            boolean inBase = source.base != null && source.base.find(name) >= 0;
+            if (index >= 0) {
+                // keep removed entry while it hides record of base snapshot.
+                types[index] = inBase ? TYPE_REMOVED : TYPE_DROPPED;
+                objects[index] = null;
+                if (!inBase) {
+                    droppedCount++;
+                }
+            } else if (inBase) {
+                add(new Key(name), TYPE_REMOVED, 0, null);
+            }
+        }
+
+        void put(String name, byte type, long primitive, @Nullable Object object) {
+            int index = source.indexOf(name);
+            if (index < 0) {
+                add(new Key(name), type, primitive, object);
+                return;
+            }
+            if (types[index] == TYPE_DROPPED) {
+                droppedCount--;
+            }
+            types[index] = type;
+            primitives[index] = primitive;
+            objects[index] = object;
+        }
+
+        private void add(Key key, byte type, long primitive, @Nullable Object object) {
+            addedKeys[addedCount] = key;
+            addedTypes[addedCount] = type;
+            addedPrimitives[addedCount] = primitive;
+            addedObjects[addedCount] = object;
+            addedCount++;
+        }
+
+        ValueStore build() {
+            int size = source.size;
+            int[] hashes = source.hashes;
+            int[] sorted = source.sortedEntries;
+            if (addedCount == 0 && droppedCount == 0) {
+                // same keys, keys, hashes and lookup table are shared with previous snapshot.
+                ValueStore store = new ValueStore(source.base, size, hashes, source.keys, types,
+                        primitives, objects, source.table);
+                store.sortedEntries = sorted;
+                return store;
+            }
+
+            // merge sorted entries with added keys sorted by hash.
+            long[] order = new long[addedCount];
+            for (int i = 0; i < addedCount; i++) {
+                order[i] = ((long) addedKeys[i].hash << 32) | i;
+            }
+            Arrays.sort(order);
+
+            int count = size - droppedCount + addedCount;
+            int[] newHashes = new int[count];
+            Key[] newKeys = new Key[count];
+            byte[] newTypes = new byte[count];
+            long[] newPrimitives = new long[count];
+            Object[] newObjects = new Object[count];
+            // new places of source entries and added keys, needed to carry sorted index over.
+            int[] moved = null;
+            int[] addedPlaces = null;
+            if (sorted != null) {
+                moved = new int[size];
+                Arrays.fill(moved, -1);
+                addedPlaces = new int[addedCount];
+            }
+            int from = 0;
+            int added = 0;
+            for (int to = 0; to < count; to++) {
+                while (from < size && types[from] == TYPE_DROPPED) {
+                    from++;
+                }
+                if (added < addedCount && (from == size || (order[added] >> 32) < hashes[from])) {
+                    int addedIndex = (int) order[added++];
+                    if (addedPlaces != null) {
+                        addedPlaces[addedIndex] = to;
+                    }
+                    newHashes[to] = addedKeys[addedIndex].hash;
+                    newKeys[to] = addedKeys[addedIndex];
+                    newTypes[to] = addedTypes[addedIndex];
+                    newPrimitives[to] = addedPrimitives[addedIndex];
+                    newObjects[to] = addedObjects[addedIndex];
+                } else {
+                    if (moved != null) {
+                        moved[from] = to;
+                    }
+                    newHashes[to] = hashes[from];
+                    newKeys[to] = source.keys[from];
+                    newTypes[to] = types[from];
+                    newPrimitives[to] = primitives[from];
+                    newObjects[to] = objects[from];
+                    from++;
+                }
+            }
+            ValueStore store = new ValueStore(source.base, count, newHashes, newKeys, newTypes,
+                    newPrimitives, newObjects);
+            if (sorted != null) {
+                store.sortedEntries = mergeSorted(sorted, moved, addedPlaces, newKeys);
+            }
+            return store;
+        }
+
+        /**
+         * Builds sorted index of edited store from index of source: entries that are kept
+         * stay in the same order, added keys are sorted and merged in.
+         *
+         * @param moved new places of source entries, -1 for dropped ones.
+         * @param added places of added keys.
+         */
+        private static int[] mergeSorted(int[] sorted, int[] moved, int[] added, Key[] keys) {
+            IntSort.sort(added, (a, b) -> compare(keys[a].bytes, keys[b].bytes));
+            int[] result = new int[keys.length];
+            int count = 0;
+            int next = 0;
+            for (int entry : sorted) {
+                int place = moved[entry];
+                if (place < 0) {
+                    continue;
+                }
+                while (next < added.length &&
+                        compare(keys[added[next]].bytes, keys[place].bytes) < 0) {
+                    result[count++] = added[next++];
+                }
+                result[count++] = place;
+            }
+            while (next < added.length) {
+                result[count++] = added[next++];
+            }
+            return result;
+        }
+    }
+
+    private static boolean isObjectType(byte type) {
+        return type == TYPE_STRING || type == TYPE_STRING_SET || type == TYPE_BYTES;
+    }
+
+    /**
+     * Collects entries in any order, later put or remove of the same key overrides previous one.
+     */
+    static final class Builder {
+        private int size;
+        private Key[] keys;
+        private byte[] types;
+        private long[] primitives;
+        private Object[] objects;
+
+        Builder(int capacity) {
+            capacity = Math.max(capacity, 1);
+            keys = new Key[capacity];
+            types = new byte[capacity];
+            primitives = new long[capacity];
+            objects = new Object[capacity];
+        }
+
+        void put(Key key, byte type, long primitive, @Nullable Object object) {
+            if (size == keys.length) {
+                int capacity = size * 2;
+                keys = Arrays.copyOf(keys, capacity);
+                types = Arrays.copyOf(types, capacity);
+                primitives = Arrays.copyOf(primitives, capacity);
+                objects = Arrays.copyOf(objects, capacity);
+            }
+            keys[size] = key;
+            types[size] = type;
+            primitives[size] = primitive;
+            objects[size] = object;
+            size++;
+        }
+
+        void remove(Key key) {
+            put(key, TYPE_REMOVED, 0, null);
+        }
+
+        /**
+         * Adds names of all entries to {@code names}.
+         */
+        void collectNames(Collection<String> names) {
+            for (int i = 0; i < size; i++) {
+                names.add(keys[i].getText());
+            }
+        }
+
+        /**
+         * Converts entries to edit of a store they are applied to, last entry of the key wins.
+         * Keys from {@code skipped} are left out.
+         */
+        void collectEdit(Collection<String> removed, EditBuffer puts, Set<String> skipped) {
+            HashMap<String, Integer> last = new HashMap<>();
+            for (int i = 0; i < size; i++) {
+                last.put(keys[i].getText(), i);
+            }
+            for (Map.Entry<String, Integer> entry : last.entrySet()) {
+                String name = entry.getKey();
+                int index = entry.getValue();
+                if (skipped.contains(name)) {
+                    continue;
+                }
+                byte type = types[index];
+                Object object = objects[index];
+                if (type == TYPE_REMOVED) {
+                    removed.add(name);
+                } else {
+                    puts.put(name, type, primitives[index], object instanceof EncodedValue ?
+                            ((EncodedValue) object).decode(type) : object);
+                }
+            }
+        }
+
+        /**
+         * @param base snapshot that entries override, removed entries are kept only
+         *             for keys present in it.
+         */
+        ValueStore build(@Nullable MappedSnapshot base) {
+            // hash in high bits, insertion order in low bits.
+            long[] order = new long[size];
+            for (int i = 0; i < size; i++) {
+                order[i] = ((long) keys[i].hash << 32) | i;
+            }
+            Arrays.sort(order);
+
+            int[] hashes = new int[size];
+            Key[] keys = new Key[size];
+            byte[] types = new byte[size];
+            long[] primitives = new long[size];
+            Object[] objects = new Object[size];
+            int count = 0;
+            for (int i = 0; i < size; i++) {
+                int index = (int) order[i];
+                if (isOverridden(order, i) || (this.types[index] == TYPE_REMOVED &&
+                        (base == null || base.find(this.keys[index]) < 0))) {
+                    continue;
+                }
+                hashes[count] = this.keys[index].hash;
+                keys[count] = this.keys[index];
+                types[count] = this.types[index];
+                primitives[count] = this.primitives[index];
+                objects[count] = this.objects[index];
+                count++;
+            }
+            if (count < size) {
+                hashes = Arrays.copyOf(hashes, count);
+                keys = Arrays.copyOf(keys, count);
+                types = Arrays.copyOf(types, count);
+                primitives = Arrays.copyOf(primitives, count);
+                objects = Arrays.copyOf(objects, count);
+            }
+            return new ValueStore(base, count, hashes, keys, types, primitives, objects);
+        }
+
+        /**
+         * Checks if there is later entry with same key, entries with same hash are adjacent
+         * in insertion order.
+         */
+        private boolean isOverridden(long[] order, int position) {
+            Key key = keys[(int) order[position]];
+            for (int i = position + 1; i < order.length && (order[i] >> 32) == key.hash; i++) {
+                if (keys[(int) order[i]].equals(key)) {
+                    return true;
+                }
+            }
+            return false;
+        }
+    }
+
+    /**
+     * String, string set or blob value encoded in mapped file, decoded on first access.
+     */
+    static final class EncodedValue {
+        final ByteBuffer source;
+        final int offset;
+        final int length;
+
+        EncodedValue(ByteBuffer source, int offset, int length) {
+            this.source = source;
+            this.offset = offset;
+            this.length = length;
+        }
+
+        Object decode(byte type) {
+            return decode(source, offset, type);
+        }
+
+        static Object decode(ByteBuffer source, int offset, byte type) {
+            if (type == TYPE_BYTES) {
+                return bytes(source, offset + 4, source.getInt(offset));
+            }
+            if (type == TYPE_STRING) {
+                return string(source, offset + 4, source.getInt(offset));
+            }
+            ByteBuffer in = source.duplicate();
+            in.position(offset);
+            int[] offsets = new int[in.getInt()];
+            for (int setIndex = 0; setIndex < offsets.length; setIndex++) {
+                offsets[setIndex] = in.position();
+                in.position(in.position() + 4 + in.getInt());
+            }
+            return CompactStringSet.wrap(source, offsets);
+        }
+
+        /**
+         * Returns read-only view of mapped region.
+         */
+        static ByteBuffer slice(ByteBuffer source, int offset, int length) {
+            ByteBuffer in = source.duplicate();
+            in.limit(offset + length);
+            in.position(offset);
+            return in.slice().asReadOnlyBuffer();
+        }
+
+        /**
+         * Returns read-only blob, raw one is view of mapped region.
+         *
+         * @param length raw length or negative size of deflated block.
+         */
+        static ByteBuffer bytes(ByteBuffer source, int offset, int length) {
+            if (length < 0) {
+                return ByteBuffer.wrap(inflate(source, offset, -length)).asReadOnlyBuffer();
+            }
+            return slice(source, offset, length);
+        }
+
+        /**
+         * @param length raw length or negative size of deflated block.
+         */
+        static String string(ByteBuffer source, int offset, int length) {
+            byte[] bytes;
+            if (length < 0) {
+                bytes = inflate(source, offset, -length);
+            } else {
+                bytes = new byte[length];
+                ByteBuffer in = source.duplicate();
+                in.position(offset);
+                in.get(bytes);
+            }
+            return new String(bytes, StandardCharsets.UTF_8);
+        }
+
+        /**
+         * Inflates block of int raw length and zlib stream written by {@link Encoder}.
+         */
+        private static byte[] inflate(ByteBuffer source, int offset, int size) {
+            byte[] input = new byte[size - 4];
+            ByteBuffer in = source.duplicate();
+            in.position(offset + 4);
+            in.get(input);
+            byte[] output = new byte[source.getInt(offset)];
+            Inflater inflater = new Inflater();
+            try {
+                inflater.setInput(input);
+                int length = 0;
+                while (!inflater.finished()) {
+                    int inflated = inflater.inflate(output, length, output.length - length);
+                    if (inflated == 0 && (inflater.needsInput() || inflater.needsDictionary() ||
+                            length == output.length)) {
+                        break;
+                    }
+                    length += inflated;
+                }
+                if (!inflater.finished() || length != output.length) {
+                    throw new IllegalStateException("Corrupted compressed value");
+                }
+            } catch (DataFormatException e) {
+                throw new IllegalStateException("Corrupted compressed value", e);
+            } finally {
+                inflater.end();
+            }
+            return output;
+        }
+    }
+}
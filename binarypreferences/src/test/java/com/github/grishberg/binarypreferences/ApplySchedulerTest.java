@@ -0,0 +1,108 @@
+package com.github.grishberg.binarypreferences;
+
+import org.junit.Test;
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Set;
+import java.util.concurrent.TimeUnit;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+
+public class ApplySchedulerTest {
+    /**
+     * Records written keys and time of each write.
+     */
+    private static final class RecordingWriter implements ChangesWriter {
+        final List<Set<String>> batches = new ArrayList<>();
+        final List<Long> times = new ArrayList<>();
+
+        @Override
+        public synchronized boolean write(Set<String> keys) {
+            batches.add(new HashSet<>(keys));
+            times.add(System.nanoTime());
+            return true;
+        }
+
+        synchronized int writes() {
+            return batches.size();
+        }
+    }
+
+    private static ApplyScheduler scheduler(RecordingWriter writer, long debounceMillis,
+                                            long maxDelayMillis) {
+        return new ApplyScheduler(() -> Runnable::run, debounceMillis, maxDelayMillis,
+                writer, null);
+    }
+
+    private static void awaitFlushed(ApplyScheduler scheduler) throws InterruptedException {
+        long deadline = System.nanoTime() + TimeUnit.SECONDS.toNanos(5);
+        while (scheduler.isPending()) {
+            assertTrue("flush timed out", System.nanoTime() < deadline);
+            Thread.sleep(5);
+        }
+    }
+
+    @Test
+    public void appliesWithinDebounceWindowAreWrittenOnce() throws Exception {
+        RecordingWriter writer = new RecordingWriter();
+        ApplyScheduler scheduler = scheduler(writer, 100, 1000);
+        Set<String> expected = new HashSet<>();
+        for (int i = 0; i < 5; i++) {
+            scheduler.schedule(Collections.singleton("key" + i));
+            expected.add("key" + i);
+        }
+        scheduler.schedule(Collections.singleton("key0"));
+        assertTrue(scheduler.isPending());
+
+        awaitFlushed(scheduler);
+        // no more flushes after the window.
+        Thread.sleep(200);
+
+        assertEquals(1, writer.writes());
+        assertEquals(expected, writer.batches.get(0));
+    }
+
+    @Test
+    public void steadyAppliesAreFlushedWithinMaxDelay() throws Exception {
+        RecordingWriter writer = new RecordingWriter();
+        // each apply extends debounce window, only max delay forces flush.
+        ApplyScheduler scheduler = scheduler(writer, 100, 300);
+        long start = System.nanoTime();
+        Set<String> expected = new HashSet<>();
+        int applies = 0;
+        while (System.nanoTime() - start < TimeUnit.MILLISECONDS.toNanos(1200)) {
+            scheduler.schedule(Collections.singleton("key" + applies));
+            expected.add("key" + applies);
+            applies++;
+            Thread.sleep(20);
+        }
+        awaitFlushed(scheduler);
+
+        assertTrue(writer.writes() >= 2);
+        assertTrue(writer.writes() < applies);
+        long firstFlushMillis = TimeUnit.NANOSECONDS.toMillis(writer.times.get(0) - start);
+        assertTrue("first flush after " + firstFlushMillis + " ms", firstFlushMillis < 800);
+        Set<String> written = new HashSet<>();
+        for (Set<String> batch : writer.batches) {
+            written.addAll(batch);
+        }
+        assertEquals(expected, written);
+    }
+
+    @Test
+    public void closeWritesPendingKeys() {
+        RecordingWriter writer = new RecordingWriter();
+        ApplyScheduler scheduler = scheduler(writer, 10_000, 10_000);
+        scheduler.schedule(Collections.singleton("key"));
+
+        scheduler.close();
+
+        assertFalse(scheduler.isPending());
+        assertEquals(Collections.singletonList(Collections.singleton("key")), writer.batches);
+    }
+}
@@ -0,0 +1,134 @@
+package com.github.grishberg.binarypreferences;
+
+import org.junit.Rule;
+import org.junit.Test;
+import org.junit.rules.TemporaryFolder;
+
+import java.io.File;
+import java.nio.ByteBuffer;
+import java.util.Map;
+import java.util.Random;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertTrue;
+
+public class BlobFormatTest {
+    @Rule
+    public TemporaryFolder folder = new TemporaryFolder();
+
+    private static BinaryPreferences.Options options(boolean deltaLog) {
+        return new BinaryPreferences.Options()
+                .setApplyExecutor(Runnable::run)
+                .setDeltaLogEnabled(deltaLog)
+                .setCompactionThreshold(Long.MAX_VALUE, Float.MAX_VALUE);
+    }
+
+    private static BinaryPreferences open(File file, boolean deltaLog) {
+        return new BinaryPreferences(file, options(deltaLog));
+    }
+
+    private static byte[] bytes(int size) {
+        byte[] bytes = new byte[size];
+        new Random(size).nextBytes(bytes);
+        return bytes;
+    }
+
+    private static void assertBlob(byte[] expected, ByteBuffer actual) {
+        assertTrue(actual.isReadOnly());
+        assertEquals(ByteBuffer.wrap(expected), actual);
+    }
+
+    @Test
+    public void roundTrip() throws Exception {
+        File file = new File(folder.getRoot(), "prefs");
+        Map<String, Object> values = PreferenceFiles.sampleValues();
+        BinaryPreferences.BinaryEditor editor = open(file, false).edit();
+        PreferenceFiles.putAll(editor, values);
+        editor.putBytes("empty blob", new byte[0]);
+        editor.putBytes("small", bytes(16));
+        ByteBuffer large = ByteBuffer.wrap(bytes(256 * 1024 + 8));
+        large.position(8);
+        editor.putByteBuffer("large", large);
+        editor.commit();
+
+        assertEquals(Segment.FORMAT_VERSION_BLOBS, PreferenceFiles.formatVersion(file));
+        BinaryPreferences reopened = open(file, false);
+        assertBlob(new byte[0], reopened.getBytes("empty blob", null));
+        assertBlob(bytes(16), reopened.getBytes("small", null));
+        large.position(8);
+        assertEquals(large, reopened.getBytes("large", null));
+        assertNull(reopened.getBytes("missing", null));
+        for (Map.Entry<String, Object> entry : values.entrySet()) {
+            assertEquals(entry.getValue(), reopened.getAll().get(entry.getKey()));
+        }
+
+        // removing last blob writes format without blobs again.
+        reopened.edit().remove("empty blob").remove("small").remove("large").commit();
+        assertEquals(Segment.FORMAT_VERSION, PreferenceFiles.formatVersion(file));
+        assertEquals(values, open(file, false).getAll());
+    }
+
+    @Test
+    public void flatFileIsUpgradedByFirstBlob() throws Exception {
+        File file = new File(folder.getRoot(), "prefs");
+        Map<String, Object> values = PreferenceFiles.sampleValues();
+        PreferenceFiles.writeFlat(file, values);
+
+        BinaryPreferences preferences = open(file, false);
+        assertEquals(values, preferences.getAll());
+        preferences.edit().putBytes("blob", bytes(100)).commit();
+
+        assertEquals(Segment.FORMAT_VERSION_BLOBS, PreferenceFiles.formatVersion(file));
+        BinaryPreferences reopened = open(file, false);
+        assertBlob(bytes(100), reopened.getBytes("blob", null));
+        reopened.edit().remove("blob").commit();
+        assertEquals(values, open(file, false).getAll());
+    }
+
+    @Test
+    public void legacyFileIsUpgradedByFirstBlob() throws Exception {
+        File file = new File(folder.getRoot(), "prefs");
+        Map<String, Object> values = PreferenceFiles.sampleValues();
+        PreferenceFiles.writeLegacy(file, values);
+
+        open(file, false).edit().putBytes("blob", bytes(100)).commit();
+
+        assertEquals(Segment.FORMAT_VERSION_BLOBS, PreferenceFiles.formatVersion(file));
+        BinaryPreferences reopened = open(file, false);
+        assertBlob(bytes(100), reopened.getBytes("blob", null));
+        reopened.edit().remove("blob").commit();
+        assertEquals(values, open(file, false).getAll());
+    }
+
+    @Test
+    public void blobsInLogOfFlatFileAreCompacted() throws Exception {
+        File file = new File(folder.getRoot(), "prefs");
+        Map<String, Object> values = PreferenceFiles.sampleValues();
+        PreferenceFiles.writeFlat(file, values);
+
+        BinaryPreferences preferences = open(file, true);
+        preferences.edit().putBytes("first", bytes(1000)).commit();
+        preferences.edit().putBytes("torn", bytes(2000)).commit();
+        assertEquals(1, PreferenceFiles.formatVersion(file));
+
+        // blob of interrupted record is not read.
+        PreferenceFiles.truncate(file, file.length() - 100);
+        BinaryPreferences reopened = new BinaryPreferences(file,
+                options(true).setCompactionThreshold(0, 0));
+        assertBlob(bytes(1000), reopened.getBytes("first", null));
+        assertNull(reopened.getBytes("torn", null));
+
+        // the write replaces torn file, then every append is compacted.
+        reopened.edit().putBytes("second", bytes(3000)).commit();
+        reopened.edit().putInt("int", 1).commit();
+        values.put("int", 1);
+
+        assertEquals(Segment.FORMAT_VERSION_BLOBS, PreferenceFiles.formatVersion(file));
+        BinaryPreferences compacted = open(file, true);
+        assertBlob(bytes(1000), compacted.getBytes("first", null));
+        assertBlob(bytes(3000), compacted.getBytes("second", null));
+        compacted.edit().remove("first").remove("second").commit();
+        assertEquals(values, open(file, true).getAll());
+    }
+}
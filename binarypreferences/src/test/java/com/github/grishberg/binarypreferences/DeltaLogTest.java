@@ -0,0 +1,126 @@
+package com.github.grishberg.binarypreferences;
+
+import org.junit.Rule;
+import org.junit.Test;
+import org.junit.rules.TemporaryFolder;
+
+import java.io.File;
+import java.nio.file.Files;
+import java.nio.file.StandardCopyOption;
+import java.util.HashMap;
+import java.util.Map;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+
+public class DeltaLogTest {
+    @Rule
+    public TemporaryFolder folder = new TemporaryFolder();
+
+    private static BinaryPreferences.Options options(long compactionThreshold) {
+        return new BinaryPreferences.Options()
+                .setApplyExecutor(Runnable::run)
+                .setDeltaLogEnabled(true)
+                .setCompactionThreshold(compactionThreshold, Float.MAX_VALUE);
+    }
+
+    private static BinaryPreferences open(File file, long compactionThreshold) {
+        return new BinaryPreferences(file, options(compactionThreshold));
+    }
+
+    @Test
+    public void commitAppendsOnlyChangedKeys() throws Exception {
+        File file = new File(folder.getRoot(), "file");
+        BinaryPreferences preferences = open(file, Long.MAX_VALUE);
+        BinaryPreferences.BinaryEditor editor = preferences.edit();
+        PreferenceFiles.putAll(editor, PreferenceFiles.sampleValues());
+        for (int i = 0; i < 100; i++) {
+            editor.putString("padding" + i, "some value " + i);
+        }
+        assertTrue(editor.commit());
+        long snapshotSize = file.length();
+
+        preferences.edit().putInt("int", 1).commit();
+        preferences.edit().remove("string").commit();
+        preferences.edit().putString("added", "new").commit();
+
+        assertTrue(file.length() - snapshotSize < snapshotSize / 10);
+        assertEquals(preferences.getAll(), open(file, Long.MAX_VALUE).getAll());
+        assertEquals(1, open(file, Long.MAX_VALUE).getInt("int", 0));
+    }
+
+    @Test
+    public void tornTrailingRecordIsIgnored() throws Exception {
+        File file = new File(folder.getRoot(), "file");
+        BinaryPreferences preferences = open(file, Long.MAX_VALUE);
+        BinaryPreferences.BinaryEditor editor = preferences.edit();
+        PreferenceFiles.putAll(editor, PreferenceFiles.sampleValues());
+        editor.commit();
+        preferences.edit().putInt("int", 1).commit();
+        Map<String, ?> committed = preferences.getAll();
+        long committedSize = file.length();
+        preferences.edit().putInt("int", 2).putString("torn", "value").commit();
+        long fullSize = file.length();
+
+        for (long size = committedSize + 1; size < fullSize; size++) {
+            File copy = new File(folder.getRoot(), "copy" + size);
+            Files.copy(file.toPath(), copy.toPath(), StandardCopyOption.REPLACE_EXISTING);
+            PreferenceFiles.truncate(copy, size);
+            BinaryPreferences reopened = open(copy, Long.MAX_VALUE);
+            assertEquals("cut at " + size, committed, reopened.getAll());
+
+            // interrupted record is dropped by next write.
+            reopened.edit().putInt("after", 3).commit();
+            Map<String, Object> expected = new HashMap<>(committed);
+            expected.put("after", 3);
+            assertEquals(expected, open(copy, Long.MAX_VALUE).getAll());
+        }
+    }
+
+    @Test
+    public void reopenAfterCompaction() throws Exception {
+        File file = new File(folder.getRoot(), "file");
+        // every append is compacted on the direct executor.
+        BinaryPreferences preferences = open(file, 0);
+        BinaryPreferences.BinaryEditor editor = preferences.edit();
+        PreferenceFiles.putAll(editor, PreferenceFiles.sampleValues());
+        editor.commit();
+        for (int i = 0; i < 50; i++) {
+            preferences.edit().putInt("counter", i).remove("key" + (i - 1))
+                    .putString("key" + i, "value" + i).commit();
+        }
+
+        File snapshot = new File(folder.getRoot(), "snapshot");
+        BinaryPreferences rewritten = new BinaryPreferences(snapshot,
+                new BinaryPreferences.Options().setApplyExecutor(Runnable::run));
+        BinaryPreferences.BinaryEditor snapshotEditor = rewritten.edit();
+        PreferenceFiles.putAll(snapshotEditor, preferences.getAll());
+        snapshotEditor.commit();
+        // log was folded into snapshot of the same values.
+        assertEquals(snapshot.length(), file.length());
+
+        BinaryPreferences reopened = open(file, 0);
+        assertEquals(preferences.getAll(), reopened.getAll());
+        assertEquals(49, reopened.getInt("counter", -1));
+        reopened.edit().putInt("counter", 50).commit();
+        assertEquals(50, open(file, Long.MAX_VALUE).getInt("counter", -1));
+    }
+
+    @Test
+    public void legacyFileIsReplacedBySnapshotOnFirstWrite() throws Exception {
+        File file = new File(folder.getRoot(), "file");
+        Map<String, Object> values = PreferenceFiles.sampleValues();
+        PreferenceFiles.writeLegacy(file, values);
+        BinaryPreferences preferences = open(file, Long.MAX_VALUE);
+        assertEquals(values, preferences.getAll());
+
+        preferences.edit().putInt("int", 7).commit();
+        long snapshotSize = file.length();
+        preferences.edit().putInt("int", 8).commit();
+
+        assertEquals(Segment.FORMAT_VERSION, PreferenceFiles.formatVersion(file));
+        assertTrue(file.length() > snapshotSize);
+        values.put("int", 8);
+        assertEquals(values, open(file, Long.MAX_VALUE).getAll());
+    }
+}
@@ -0,0 +1,101 @@
+package com.github.grishberg.binarypreferences;
+
+import org.junit.Test;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Set;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.atomic.AtomicBoolean;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+
+public class GroupCommitTest {
+    private static final int COMMITTERS = 8;
+
+    /**
+     * Records batches, the first write blocks until it is released.
+     */
+    private static final class BlockingWriter implements ChangesWriter {
+        final List<Set<String>> batches = Collections.synchronizedList(new ArrayList<>());
+        final CountDownLatch firstStarted = new CountDownLatch(1);
+        final CountDownLatch releaseFirst = new CountDownLatch(1);
+
+        @Override
+        public boolean write(Set<String> keys) {
+            batches.add(new HashSet<>(keys));
+            if (batches.size() == 1) {
+                firstStarted.countDown();
+                try {
+                    releaseFirst.await();
+                } catch (InterruptedException e) {
+                    throw new IllegalStateException(e);
+                }
+            }
+            return true;
+        }
+    }
+
+    @Test
+    public void commitsWaitingForWriteAreWrittenInOneBatch() throws Exception {
+        BlockingWriter writer = new BlockingWriter();
+        GroupCommit groupCommit = new GroupCommit(writer);
+        Thread first = new Thread(() -> groupCommit.commit(Collections.singleton("first")));
+        first.start();
+        writer.firstStarted.await();
+
+        AtomicBoolean failed = new AtomicBoolean();
+        Thread[] committers = new Thread[COMMITTERS];
+        for (int i = 0; i < COMMITTERS; i++) {
+            final String key = "key" + i;
+            committers[i] = new Thread(() -> {
+                if (!groupCommit.commit(Collections.singleton(key))) {
+                    failed.set(true);
+                }
+            });
+            committers[i].start();
+        }
+        // all committers wait for the first write.
+        for (Thread committer : committers) {
+            while (committer.getState() != Thread.State.WAITING) {
+                Thread.sleep(1);
+            }
+        }
+        writer.releaseFirst.countDown();
+        first.join();
+        for (Thread committer : committers) {
+            committer.join();
+        }
+
+        assertFalse(failed.get());
+        assertEquals(2, writer.batches.size());
+        Set<String> expected = new HashSet<>();
+        for (int i = 0; i < COMMITTERS; i++) {
+            expected.add("key" + i);
+        }
+        assertEquals(expected, writer.batches.get(1));
+    }
+
+    @Test
+    public void keysOfFailedBatchAreWrittenByNextBatch() {
+        List<Set<String>> batches = new ArrayList<>();
+        GroupCommit groupCommit = new GroupCommit(keys -> {
+            batches.add(new HashSet<>(keys));
+            // first write fails.
+            return batches.size() > 1;
+        });
+
+        assertFalse(groupCommit.commit(Collections.singleton("a")));
+        assertTrue(groupCommit.commit(Collections.singleton("b")));
+
+        assertEquals(2, batches.size());
+        assertEquals(new HashSet<>(Arrays.asList("a", "b")), batches.get(1));
+        assertTrue(groupCommit.commit(Collections.singleton("c")));
+        assertEquals(Collections.singleton("c"), batches.get(2));
+    }
+}
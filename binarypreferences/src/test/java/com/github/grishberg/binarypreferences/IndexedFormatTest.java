@@ -0,0 +1,122 @@
+package com.github.grishberg.binarypreferences;
+
+import org.junit.Rule;
+import org.junit.Test;
+import org.junit.rules.TemporaryFolder;
+
+import java.io.File;
+import java.util.Map;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+
+public class IndexedFormatTest {
+    @Rule
+    public TemporaryFolder folder = new TemporaryFolder();
+
+    private static BinaryPreferences open(File file, boolean deltaLog) {
+        return new BinaryPreferences(file, new BinaryPreferences.Options()
+                .setApplyExecutor(Runnable::run)
+                .setDeltaLogEnabled(deltaLog)
+                .setCompactionThreshold(Long.MAX_VALUE, Float.MAX_VALUE));
+    }
+
+    @Test
+    public void roundTrip() throws Exception {
+        File file = new File(folder.getRoot(), "prefs");
+        Map<String, Object> values = PreferenceFiles.sampleValues();
+        BinaryPreferences.BinaryEditor editor = open(file, false).edit();
+        PreferenceFiles.putAll(editor, values);
+        for (int i = 0; i < 1000; i++) {
+            values.put("key" + i, i);
+            editor.putInt("key" + i, i);
+        }
+        assertTrue(editor.commit());
+
+        assertEquals(Segment.FORMAT_VERSION, PreferenceFiles.formatVersion(file));
+        BinaryPreferences reopened = open(file, false);
+        assertTrue(reopened.getBoolean("boolean", false));
+        assertEquals(999, reopened.getInt("key999", -1));
+        assertFalse(reopened.contains("missing"));
+        assertEquals(values, reopened.getAll());
+    }
+
+    @Test
+    public void keysWithSameHashAreFound() throws Exception {
+        File file = new File(folder.getRoot(), "prefs");
+        // "Aa" and "BB" have the same String.hashCode().
+        open(file, false).edit().putInt("Aa", 1).putInt("BB", 2).commit();
+
+        BinaryPreferences reopened = open(file, false);
+        assertEquals(1, reopened.getInt("Aa", 0));
+        assertEquals(2, reopened.getInt("BB", 0));
+        assertFalse(reopened.contains("C#"));
+    }
+
+    @Test
+    public void legacyFileIsUpgradedOnWrite() throws Exception {
+        File file = new File(folder.getRoot(), "prefs");
+        Map<String, Object> values = PreferenceFiles.sampleValues();
+        PreferenceFiles.writeLegacy(file, values);
+
+        BinaryPreferences preferences = open(file, false);
+        assertEquals(values, preferences.getAll());
+        preferences.edit().putString("string", "changed").commit();
+
+        assertEquals(Segment.FORMAT_VERSION, PreferenceFiles.formatVersion(file));
+        values.put("string", "changed");
+        assertEquals(values, open(file, false).getAll());
+    }
+
+    @Test
+    public void flatFileIsReadAndAppended() throws Exception {
+        File file = new File(folder.getRoot(), "prefs");
+        Map<String, Object> values = PreferenceFiles.sampleValues();
+        PreferenceFiles.writeFlat(file, values);
+
+        BinaryPreferences preferences = open(file, true);
+        assertEquals(values, preferences.getAll());
+        long flatSize = file.length();
+        preferences.edit().putInt("int", 1).remove("set").commit();
+
+        // log records are appended to flat snapshot.
+        assertEquals(1, PreferenceFiles.formatVersion(file));
+        assertTrue(file.length() > flatSize);
+        values.put("int", 1);
+        values.remove("set");
+        assertEquals(values, open(file, true).getAll());
+
+        // interrupted record is ignored, next write replaces file with indexed snapshot.
+        PreferenceFiles.truncate(file, file.length() - 1);
+        values.put("int", -42);
+        values.put("set", PreferenceFiles.sampleValues().get("set"));
+        BinaryPreferences reopened = open(file, true);
+        assertEquals(values, reopened.getAll());
+        reopened.edit().putLong("long", 0).commit();
+
+        assertEquals(Segment.FORMAT_VERSION, PreferenceFiles.formatVersion(file));
+        values.put("long", 0L);
+        assertEquals(values, open(file, true).getAll());
+    }
+
+    @Test
+    public void flatFileIsCompactedToIndexed() throws Exception {
+        File file = new File(folder.getRoot(), "prefs");
+        Map<String, Object> values = PreferenceFiles.sampleValues();
+        PreferenceFiles.writeFlat(file, values);
+
+        // every append is compacted on the direct executor.
+        BinaryPreferences preferences = new BinaryPreferences(file,
+                new BinaryPreferences.Options()
+                        .setApplyExecutor(Runnable::run)
+                        .setDeltaLogEnabled(true)
+                        .setCompactionThreshold(0, Float.MAX_VALUE));
+        preferences.edit().putInt("int", 1).commit();
+
+        assertEquals(Segment.FORMAT_VERSION, PreferenceFiles.formatVersion(file));
+        values.put("int", 1);
+        assertEquals(values, preferences.getAll());
+        assertEquals(values, open(file, true).getAll());
+    }
+}
@@ -0,0 +1,127 @@
+package com.github.grishberg.binarypreferences;
+
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Rule;
+import org.junit.Test;
+import org.junit.rules.TemporaryFolder;
+
+import java.io.File;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.Map;
+import java.util.Set;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertNotEquals;
+import static org.junit.Assert.assertTrue;
+
+public class MultiProcessTest {
+    private static final long NO_COMPACTION = Long.MAX_VALUE;
+
+    @Rule
+    public TemporaryFolder folder = new TemporaryFolder();
+
+    private File file;
+    private BinaryPreferences preferences;
+
+    @Before
+    public void setUp() throws IOException {
+        file = new File(folder.getRoot(), "prefs");
+    }
+
+    @After
+    public void tearDown() {
+        if (preferences != null) {
+            preferences.close();
+        }
+    }
+
+    @Test
+    public void concurrentWritersKeepChangesOfEachOther() throws Exception {
+        preferences = new BinaryPreferences(file, OtherProcess.options(4 * 1024));
+        Process other = start("b", 300, 4 * 1024);
+        OtherProcess.edit(preferences, "a", 300);
+        assertEquals(0, other.waitFor());
+
+        Map<String, Object> expected = expected("a", 300);
+        expected.putAll(expected("b", 300));
+        assertEquals(expected, preferences.getAll());
+        preferences.close();
+        preferences = new BinaryPreferences(file, OtherProcess.options(4 * 1024));
+        assertEquals(expected, preferences.getAll());
+    }
+
+    @Test
+    public void getterReadsRecordsAppendedByOtherProcess() throws Exception {
+        preferences = new BinaryPreferences(file, OtherProcess.options(NO_COMPACTION));
+        preferences.edit().putString("own", "value").commit();
+        long fileId = readLockHeader(Segment.LOCK_FILE_ID_OFFSET);
+        long generation = readLockHeader(Segment.LOCK_GENERATION_OFFSET);
+        Set<String> changed = new HashSet<>();
+        preferences.registerOnPreferencesChangeListener(
+                (prefs, keys) -> changed.addAll(keys), Runnable::run);
+
+        assertEquals(0, start("b", 20, NO_COMPACTION).waitFor());
+
+        // the file was appended, not replaced.
+        assertEquals(fileId, readLockHeader(Segment.LOCK_FILE_ID_OFFSET));
+        assertNotEquals(generation, readLockHeader(Segment.LOCK_GENERATION_OFFSET));
+        assertEquals(19, preferences.getInt("b19", -1));
+        assertEquals(-1, preferences.getInt("b9", -1));
+        assertEquals("value", preferences.getString("own", null));
+        assertTrue(changed.containsAll(expected("b", 20).keySet()));
+    }
+
+    @Test
+    public void getterReadsFileCompactedByOtherProcess() throws Exception {
+        preferences = new BinaryPreferences(file, OtherProcess.options(NO_COMPACTION));
+        OtherProcess.edit(preferences, "b", 10);
+        preferences.edit().putString("own", "value").commit();
+        long fileId = readLockHeader(Segment.LOCK_FILE_ID_OFFSET);
+
+        // each commit of other process is followed by compaction.
+        assertEquals(0, start("b", 50, 0).waitFor());
+
+        assertNotEquals(fileId, readLockHeader(Segment.LOCK_FILE_ID_OFFSET));
+        Map<String, Object> expected = expected("b", 50);
+        expected.put("own", "value");
+        assertEquals(expected, preferences.getAll());
+        preferences.edit().putInt("after", 1).commit();
+        preferences.close();
+        preferences = new BinaryPreferences(file, OtherProcess.options(NO_COMPACTION));
+        expected.put("after", 1);
+        assertEquals(expected, preferences.getAll());
+    }
+
+    private Process start(String prefix, int commits, long compactionThreshold)
+            throws IOException {
+        String java = System.getProperty("java.home") + File.separator + "bin" +
+                File.separator + "java";
+        return new ProcessBuilder(java, "-cp", System.getProperty("java.class.path"),
+                OtherProcess.class.getName(), file.getPath(), prefix,
+                String.valueOf(commits), String.valueOf(compactionThreshold))
+                .inheritIO()
+                .start();
+    }
+
+    private long readLockHeader(int offset) throws IOException {
+        try (RandomAccessFile lockFile = new RandomAccessFile(file.getPath() + ".lock", "r")) {
+            lockFile.seek(offset);
+            return lockFile.readLong();
+        }
+    }
+
+    /**
+     * Values left by {@link OtherProcess#edit}.
+     */
+    private static Map<String, Object> expected(String prefix, int commits) {
+        HashMap<String, Object> values = new HashMap<>();
+        for (int i = Math.max(0, commits - 10); i < commits; i++) {
+            values.put(prefix + i, i);
+        }
+        return values;
+    }
+}
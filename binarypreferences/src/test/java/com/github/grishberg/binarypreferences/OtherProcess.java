@@ -0,0 +1,40 @@
+package com.github.grishberg.binarypreferences;
+
+import java.io.File;
+
+/**
+ * Edits preferences file from separate JVM for {@link MultiProcessTest}.
+ * Arguments: file, prefix of written keys, number of commits, compaction threshold in bytes.
+ * Each commit puts {@code <prefix><i>} and removes {@code <prefix><i - 10>}.
+ */
+public final class OtherProcess {
+    private OtherProcess() {
+    }
+
+    static BinaryPreferences.Options options(long compactionThreshold) {
+        return new BinaryPreferences.Options()
+                .setMultiProcessEnabled(true)
+                .setCompactionThreshold(compactionThreshold, Float.MAX_VALUE);
+    }
+
+    static void edit(BinaryPreferences preferences, String prefix, int commits) {
+        for (int i = 0; i < commits; i++) {
+            BinaryPreferences.BinaryEditor editor = preferences.edit();
+            editor.putInt(prefix + i, i);
+            if (i >= 10) {
+                editor.remove(prefix + (i - 10));
+            }
+            if (!editor.commit()) {
+                throw new IllegalStateException("Commit failed " + prefix + i);
+            }
+        }
+    }
+
+    public static void main(String[] args) {
+        BinaryPreferences preferences = new BinaryPreferences(new File(args[0]),
+                options(Long.parseLong(args[3])));
+        edit(preferences, args[1], Integer.parseInt(args[2]));
+        // stops apply executor, it would keep this process alive.
+        preferences.close();
+    }
+}
@@ -0,0 +1,172 @@
+package com.github.grishberg.binarypreferences;
+
+import java.io.DataOutputStream;
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.ObjectOutputStream;
+import java.io.RandomAccessFile;
+import java.nio.charset.StandardCharsets;
+import java.util.LinkedHashMap;
+import java.util.LinkedHashSet;
+import java.util.Map;
+import java.util.Set;
+
+/**
+ * Writes files in formats that are only read by the library and checks written files.
+ */
+final class PreferenceFiles {
+    private PreferenceFiles() {
+    }
+
+    /**
+     * Values of all supported types, written in this order.
+     */
+    static Map<String, Object> sampleValues() {
+        LinkedHashMap<String, Object> values = new LinkedHashMap<>();
+        values.put("string", "value");
+        values.put("unicode", "\u0437\u043d\u0430\u0447\u0435\u043d\u0438\u0435 \uD83D\uDE00");
+        values.put("empty", "");
+        Set<String> set = new LinkedHashSet<>();
+        set.add("first");
+        set.add("\u0432\u0442\u043e\u0440\u043e\u0439");
+        values.put("set", set);
+        values.put("int", -42);
+        values.put("boolean", true);
+        values.put("long", Long.MAX_VALUE);
+        values.put("float", 1.5f);
+        return values;
+    }
+
+    /**
+     * Writes values the way the library wrote them before versioned formats:
+     * object stream with flat list of entries.
+     */
+    static void writeLegacy(File file, Map<String, ?> values) throws IOException {
+        try (ObjectOutputStream out = new ObjectOutputStream(new FileOutputStream(file))) {
+            out.writeInt(values.size());
+            for (Map.Entry<String, ?> entry : values.entrySet()) {
+                byte[] name = entry.getKey().getBytes(StandardCharsets.UTF_8);
+                out.writeShort(name.length);
+                out.write(name);
+                out.writeInt(entry.getKey().hashCode());
+                Object value = entry.getValue();
+                if (value instanceof String) {
+                    byte[] bytes = ((String) value).getBytes(StandardCharsets.UTF_8);
+                    out.writeByte(ValueStore.TYPE_STRING);
+                    out.writeShort(bytes.length);
+                    out.write(bytes);
+                } else if (value instanceof Set) {
+                    Set<?> set = (Set<?>) value;
+                    out.writeByte(ValueStore.TYPE_STRING_SET);
+                    out.writeInt(set.size());
+                    for (Object item : set) {
+                        out.writeUTF((String) item);
+                    }
+                } else if (value instanceof Integer) {
+                    out.writeByte(ValueStore.TYPE_INT);
+                    out.writeInt((Integer) value);
+                } else if (value instanceof Boolean) {
+                    out.writeByte(ValueStore.TYPE_BOOLEAN);
+                    out.writeBoolean((Boolean) value);
+                } else if (value instanceof Long) {
+                    out.writeByte(ValueStore.TYPE_LONG);
+                    out.writeLong((Long) value);
+                } else {
+                    out.writeByte(ValueStore.TYPE_FLOAT);
+                    out.writeFloat((Float) value);
+                }
+            }
+        }
+    }
+
+    /**
+     * Writes values in flat format version 1: header and list of entries
+     * without index.
+     */
+    static void writeFlat(File file, Map<String, ?> values) throws IOException {
+        try (DataOutputStream out = new DataOutputStream(new FileOutputStream(file))) {
+            out.writeInt(Segment.FORMAT_MAGIC);
+            out.writeByte(1);
+            out.writeInt(values.size());
+            for (Map.Entry<String, ?> entry : values.entrySet()) {
+                byte[] name = entry.getKey().getBytes(StandardCharsets.UTF_8);
+                out.writeShort(name.length);
+                out.write(name);
+                out.writeInt(entry.getKey().hashCode());
+                Object value = entry.getValue();
+                if (value instanceof String) {
+                    out.writeByte(ValueStore.TYPE_STRING);
+                    writeString(out, (String) value);
+                } else if (value instanceof Set) {
+                    Set<?> set = (Set<?>) value;
+                    out.writeByte(ValueStore.TYPE_STRING_SET);
+                    out.writeInt(set.size());
+                    for (Object item : set) {
+                        writeString(out, (String) item);
+                    }
+                } else if (value instanceof Integer) {
+                    out.writeByte(ValueStore.TYPE_INT);
+                    out.writeInt((Integer) value);
+                } else if (value instanceof Boolean) {
+                    out.writeByte(ValueStore.TYPE_BOOLEAN);
+                    out.writeBoolean((Boolean) value);
+                } else if (value instanceof Long) {
+                    out.writeByte(ValueStore.TYPE_LONG);
+                    out.writeLong((Long) value);
+                } else {
+                    out.writeByte(ValueStore.TYPE_FLOAT);
+                    out.writeFloat((Float) value);
+                }
+            }
+        }
+    }
+
+    private static void writeString(DataOutputStream out, String value) throws IOException {
+        byte[] bytes = value.getBytes(StandardCharsets.UTF_8);
+        out.writeInt(bytes.length);
+        out.write(bytes);
+    }
+
+    /**
+     * @return format version of the file, -1 for file without magic.
+     */
+    static int formatVersion(File file) throws IOException {
+        try (RandomAccessFile in = new RandomAccessFile(file, "r")) {
+            if (in.length() < 5 || in.readInt() != Segment.FORMAT_MAGIC) {
+                return -1;
+            }
+            return in.readByte();
+        }
+    }
+
+    static void truncate(File file, long length) throws IOException {
+        try (RandomAccessFile out = new RandomAccessFile(file, "rw")) {
+            out.setLength(length);
+        }
+    }
+
+    /**
+     * Puts values with types of their classes.
+     */
+    @SuppressWarnings("unchecked")
+    static void putAll(BinaryPreferences.BinaryEditor editor, Map<String, ?> values) {
+        for (Map.Entry<String, ?> entry : values.entrySet()) {
+            String name = entry.getKey();
+            Object value = entry.getValue();
+            if (value instanceof String) {
+                editor.putString(name, (String) value);
+            } else if (value instanceof Set) {
+                editor.putStringSet(name, (Set<String>) value);
+            } else if (value instanceof Integer) {
+                editor.putInt(name, (Integer) value);
+            } else if (value instanceof Boolean) {
+                editor.putBoolean(name, (Boolean) value);
+            } else if (value instanceof Long) {
+                editor.putLong(name, (Long) value);
+            } else {
+                editor.putFloat(name, (Float) value);
+            }
+        }
+    }
+}
@@ -0,0 +1,87 @@
+package com.github.grishberg.binarypreferences;
+
+import org.junit.Before;
+import org.junit.Rule;
+import org.junit.Test;
+import org.junit.rules.TemporaryFolder;
+
+import java.io.File;
+import java.nio.ByteBuffer;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.Map;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertSame;
+
+public class SingleWriterEditorTest {
+    @Rule
+    public TemporaryFolder folder = new TemporaryFolder();
+
+    private BinaryPreferences preferences;
+
+    @Before
+    public void setUp() {
+        preferences = new BinaryPreferences(new File(folder.getRoot(), "prefs"),
+                new BinaryPreferences.Options().setApplyExecutor(Runnable::run));
+    }
+
+    /**
+     * Stages puts and removals of every kind in the editor.
+     */
+    private static void stageAll(BinaryPreferences.SingleWriterEditor editor) {
+        editor.clear()
+                .putString("string", "first")
+                .putStringSet("set", Collections.singleton("first"))
+                .putInt("int", 1)
+                .putLong("long", 1)
+                .putFloat("float", 1)
+                .putBoolean("boolean", true)
+                .putBytes("bytes", new byte[]{1})
+                .putByteBuffer("buffer", ByteBuffer.wrap(new byte[]{1}))
+                .remove("removed")
+                .removeByPrefix("prefix.");
+    }
+
+    @Test
+    public void recycledEditorDoesNotKeepStagedChanges() {
+        BinaryPreferences.SingleWriterEditor editor = preferences.editSingleWriter();
+        stageAll(editor);
+        editor.commit();
+        assertSame(editor, preferences.editSingleWriter());
+
+        // values written by other editor after the first commit.
+        preferences.edit()
+                .putString("string", "second")
+                .putInt("int", 2)
+                .putString("removed", "kept")
+                .putString("prefix.key", "kept")
+                .commit();
+        Map<String, ?> expected = new HashMap<>(preferences.getAll());
+
+        editor.putString("other", "value").commit();
+
+        Map<String, Object> withOther = new HashMap<>(expected);
+        withOther.put("other", "value");
+        assertEquals(withOther, preferences.getAll());
+    }
+
+    @Test
+    public void editorRecycledByApplyDoesNotKeepStagedChanges() {
+        BinaryPreferences.SingleWriterEditor editor = preferences.editSingleWriter();
+        stageAll(editor);
+        editor.apply();
+        BinaryPreferences.SingleWriterEditor recycled = preferences.editSingleWriter();
+        assertSame(editor, recycled);
+
+        preferences.edit().putInt("int", 2).putString("prefix.key", "kept").commit();
+        Map<String, Object> expected = new HashMap<>(preferences.getAll());
+
+        recycled.apply();
+        assertEquals(expected, preferences.getAll());
+        preferences.close();
+        BinaryPreferences reopened = new BinaryPreferences(new File(folder.getRoot(), "prefs"));
+        assertEquals(expected, reopened.getAll());
+        reopened.close();
+    }
+}
@@ -0,0 +1,127 @@
+package com.github.grishberg.binarypreferences;
+
+import org.junit.Rule;
+import org.junit.Test;
+import org.junit.rules.TemporaryFolder;
+
+import java.io.File;
+import java.util.HashSet;
+import java.util.Map;
+import java.util.Set;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertSame;
+import static org.junit.Assert.assertTrue;
+
+public class StringTableFormatTest {
+    @Rule
+    public TemporaryFolder folder = new TemporaryFolder();
+
+    private static BinaryPreferences.Options options(boolean stringTable) {
+        return new BinaryPreferences.Options()
+                .setApplyExecutor(Runnable::run)
+                .setStringTableEnabled(stringTable)
+                .setCompactionThreshold(Long.MAX_VALUE, Float.MAX_VALUE);
+    }
+
+    private static BinaryPreferences open(File file, boolean stringTable) {
+        return new BinaryPreferences(file, options(stringTable));
+    }
+
+    private static void putRepeated(BinaryPreferences.BinaryEditor editor,
+                                    Map<String, Object> values) {
+        Set<String> set = new HashSet<>();
+        set.add("state_enabled");
+        set.add("state_disabled");
+        for (int i = 0; i < 100; i++) {
+            String state = i % 2 == 0 ? "state_enabled" : "state_disabled";
+            editor.putString("state" + i, state);
+            editor.putStringSet("set" + i, set);
+            values.put("state" + i, state);
+            values.put("set" + i, set);
+        }
+    }
+
+    @Test
+    public void roundTripSharesRepeatedStrings() throws Exception {
+        File file = new File(folder.getRoot(), "prefs");
+        Map<String, Object> values = PreferenceFiles.sampleValues();
+        BinaryPreferences.BinaryEditor editor = open(file, true).edit();
+        PreferenceFiles.putAll(editor, values);
+        putRepeated(editor, values);
+        editor.commit();
+
+        assertEquals(Segment.FORMAT_VERSION_STRING_TABLE, PreferenceFiles.formatVersion(file));
+        BinaryPreferences reopened = open(file, true);
+        assertEquals(values, reopened.getAll());
+        assertSame(reopened.getString("state0", null), reopened.getString("state2", null));
+        for (String member : reopened.getStringSet("set1", null)) {
+            assertTrue(member == reopened.getString("state0", null) ||
+                    member == reopened.getString("state1", null));
+        }
+
+        File plain = new File(folder.getRoot(), "plain");
+        BinaryPreferences.BinaryEditor plainEditor = open(plain, false).edit();
+        putRepeated(plainEditor, values);
+        PreferenceFiles.putAll(plainEditor, PreferenceFiles.sampleValues());
+        plainEditor.commit();
+        assertTrue(file.length() < plain.length());
+    }
+
+    @Test
+    public void formatFollowsOption() throws Exception {
+        File file = new File(folder.getRoot(), "prefs");
+        Map<String, Object> values = PreferenceFiles.sampleValues();
+        PreferenceFiles.writeLegacy(file, values);
+
+        BinaryPreferences preferences = open(file, true);
+        assertEquals(values, preferences.getAll());
+        preferences.edit().putInt("int", 1).commit();
+        values.put("int", 1);
+        assertEquals(Segment.FORMAT_VERSION_STRING_TABLE, PreferenceFiles.formatVersion(file));
+
+        // file with string table is read and rewritten without it when option is off.
+        preferences = open(file, false);
+        assertEquals(values, preferences.getAll());
+        preferences.edit().putInt("int", 2).commit();
+        values.put("int", 2);
+        assertEquals(Segment.FORMAT_VERSION, PreferenceFiles.formatVersion(file));
+
+        preferences = open(file, true);
+        assertEquals(values, preferences.getAll());
+        preferences.edit().putInt("int", 3).commit();
+        values.put("int", 3);
+        assertEquals(Segment.FORMAT_VERSION_STRING_TABLE, PreferenceFiles.formatVersion(file));
+        assertEquals(values, open(file, false).getAll());
+    }
+
+    @Test
+    public void logAfterStringTableSnapshot() throws Exception {
+        File file = new File(folder.getRoot(), "prefs");
+        Map<String, Object> values = PreferenceFiles.sampleValues();
+        BinaryPreferences preferences = new BinaryPreferences(file,
+                options(true).setDeltaLogEnabled(true));
+        BinaryPreferences.BinaryEditor editor = preferences.edit();
+        PreferenceFiles.putAll(editor, values);
+        putRepeated(editor, values);
+        editor.commit();
+        preferences.edit().putString("state0", "state_disabled").commit();
+        values.put("state0", "state_disabled");
+        long committedSize = file.length();
+        preferences.edit().putString("state1", "state_enabled").commit();
+
+        PreferenceFiles.truncate(file, committedSize + (file.length() - committedSize) / 2);
+        BinaryPreferences reopened = new BinaryPreferences(file,
+                options(true).setDeltaLogEnabled(true).setCompactionThreshold(0, 0));
+        assertEquals(values, reopened.getAll());
+
+        // the write replaces torn file, then every append is compacted.
+        reopened.edit().putInt("int", 1).commit();
+        reopened.edit().putInt("int", 2).commit();
+        values.put("int", 2);
+        assertEquals(Segment.FORMAT_VERSION_STRING_TABLE, PreferenceFiles.formatVersion(file));
+        BinaryPreferences compacted = open(file, true);
+        assertEquals(values, compacted.getAll());
+        assertSame(compacted.getString("state0", null), compacted.getString("state1", null));
+    }
+}